@@ -54,6 +54,11 @@ class HdWalletsActivity : BaseHomeActivity() {
 		}
 	}
 
+	override fun onDestroy() {
+		ethManager?.clearHDAccountCache()
+		super.onDestroy()
+	}
+
 	private fun generateWallets(mnemonic: ArrayList<String>, path: String, startIndex: Int, count: Int, clear: Boolean) {
 		srl_refresh.isRefreshing = true
 		Observable.create<List<HDWallet>> { emitter: ObservableEmitter<List<HDWallet>> ->
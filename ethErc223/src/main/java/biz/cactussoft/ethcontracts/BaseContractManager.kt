@@ -1,24 +1,47 @@
 package biz.cactussoft.ethcontracts
 
-import android.util.Log
-import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.databind.node.ObjectNode
+import biz.cactussoft.ethcore.keystore.CredentialsCache
+import biz.cactussoft.ethcore.keystore.KeyFileDecryptor
+import biz.cactussoft.ethcore.keystore.KeyStorage
+import biz.cactussoft.ethcore.keystore.KeyStorages
+import biz.cactussoft.ethcore.keystore.KeyStoreLayout
+import org.web3j.crypto.CipherException
+import org.web3j.crypto.Credentials
 import org.web3j.protocol.Web3j
 import org.web3j.protocol.Web3jFactory
 import org.web3j.protocol.core.methods.response.EthSendTransaction
 import org.web3j.protocol.http.HttpService
 import org.web3j.tx.TransactionManager
 import java.io.File
+import java.io.FileNotFoundException
 import java.io.IOException
 import java.math.BigInteger
-import java.util.ArrayList
 
 /**
  * Created by viktor.chukholskiy
  * 29/05/18.
+ *
+ * @param nodeUrl           - ethereum node url
+ * @param mKeyStorage       - storage of the key-files (can be shared with EthManager)
+ * @param mCredentialsCache - cache of unlocked accounts (can be shared with EthManager)
  */
 open class BaseContractManager(nodeUrl: String,
-						  private val mKeyStoreDir: String) {
+						  private val mKeyStorage: KeyStorage,
+						  protected val mCredentialsCache: CredentialsCache = CredentialsCache()) {
+
+	/**
+	 * Uses the shared indexed storage of the keystore folder (the same instance as EthManager)
+	 *
+	 * @param nodeUrl          - ethereum node url
+	 * @param keyStoreDir      - keystore folder
+	 * @param credentialsCache - cache of unlocked accounts (can be shared with EthManager)
+	 * @param layout           - layout of the keystore folder
+	 */
+	constructor(nodeUrl: String,
+				keyStoreDir: String,
+				credentialsCache: CredentialsCache = CredentialsCache(),
+				layout: KeyStoreLayout = KeyStoreLayout.FLAT)
+			: this(nodeUrl, KeyStorages.forPath(File(keyStoreDir), layout), credentialsCache)
 
 	protected val sWeb3j: Web3j = Web3jFactory.build(HttpService(nodeUrl))
 	protected val sEmptyTransactionManager =
@@ -32,62 +55,46 @@ open class BaseContractManager(nodeUrl: String,
 					return null
 				}
 			}
+
 	/**
-	 * Tries to find the key-file in the keystore folder by the address
+	 * Decrypt the stored key-file of the account
 	 *
 	 * @param accountAddress - hex address of the account
+	 * @param password       - password of the key-file
 	 *
-	 * @return key-file if it is found (otherwise null)
+	 * @return credentials of the account
 	 */
-	protected fun getKeyFileByAddress(accountAddress: String): File? {
-		var address = accountAddress
-		val files = getListFiles(File(mKeyStoreDir))
-		if (address.startsWith(ACCOUNT_PREFIX)) {
-			address = address.substring(ACCOUNT_PREFIX.length)
-		}
-		for (keyFile in files) {
-			try {
-				val node = ObjectMapper().readValue(keyFile, ObjectNode::class.java)
-				if (node.has(ACCOUNT_FIELD_NAME)) {
-					if (address.equals(node.get(ACCOUNT_FIELD_NAME).asText(), ignoreCase = true)) {
-						return keyFile
-					}
-				}
-			} catch (e: IOException) {
-				Log.e(TAG, "Incorrect file " + keyFile.name)
-			}
-
-		}
-		return null
+	@Throws(IOException::class, CipherException::class)
+	protected fun loadCredentials(accountAddress: String, password: String): Credentials {
+		val walletFile = mKeyStorage.load(accountAddress) ?: throw FileNotFoundException("Key-file of $accountAddress not found")
+		return Credentials.create(KeyFileDecryptor.decrypt(password, walletFile))
 	}
 
 	/**
-	 * Provides a list of all json files in the keystore folder
-	 *
-	 * @param parentDir - keystore folder
+	 * Unlock account: decrypt the key-file once and keep the credentials in the cache
 	 *
-	 * @return list of json files
+	 * @param accountAddress - hex address of the account
+	 * @param password       - password of the key-file
+	 * @param durationMillis - unlock duration (milliseconds)
+	 * @param signatures     - number of allowed signatures (unlimited by default)
 	 */
-	private fun getListFiles(parentDir: File): List<File> {
-		val inFiles = ArrayList<File>()
-		val files = parentDir.listFiles()
-		for (file in files) {
-			if (file.isDirectory) {
-				inFiles.addAll(getListFiles(file))
-			} else {
-				if (file.name.endsWith(KEY_FILE_FORMAT)) {
-					inFiles.add(file)
-				}
-			}
-		}
-		return inFiles
+	@Throws(IOException::class, CipherException::class)
+	fun unlockAccount(accountAddress: String,
+					  password: String,
+					  durationMillis: Long,
+					  signatures: Int = CredentialsCache.UNLIMITED_SIGNATURES) {
+		val credentials = loadCredentials(accountAddress, password)
+		mCredentialsCache.unlock(accountAddress, credentials, durationMillis, signatures)
 	}
 
-	companion object {
-		private const val ACCOUNT_PREFIX = "0x"
-		private const val ACCOUNT_FIELD_NAME = "address"
-		private const val KEY_FILE_FORMAT = ".json"
-
-		private val TAG = BaseContractManager::class.java.simpleName
+	/**
+	 * Lock account (wipe the cached key)
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return true if the account was unlocked
+	 */
+	fun lockAccount(accountAddress: String): Boolean {
+		return mCredentialsCache.lock(accountAddress)
 	}
 }
\ No newline at end of file
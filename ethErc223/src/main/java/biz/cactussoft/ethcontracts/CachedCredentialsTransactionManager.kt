@@ -0,0 +1,32 @@
+package biz.cactussoft.ethcontracts
+
+import biz.cactussoft.ethcore.keystore.CredentialsCache
+import org.web3j.protocol.Web3j
+import org.web3j.protocol.core.methods.response.EthSendTransaction
+import org.web3j.tx.RawTransactionManager
+import org.web3j.tx.TransactionManager
+import java.io.IOException
+import java.math.BigInteger
+
+/**
+ * Transaction manager of an unlocked account: every transaction takes one signature from the cache,
+ * so the signature limit, the lock and the expiration of the account apply to a long-lived contract object too.
+ *
+ * @param web3j            - web3j
+ * @param credentialsCache - cache of unlocked accounts
+ * @param accountAddress   - hex address of the account
+ */
+internal class CachedCredentialsTransactionManager(private val web3j: Web3j,
+												   private val credentialsCache: CredentialsCache,
+												   private val accountAddress: String) : TransactionManager(web3j, accountAddress) {
+
+	@Throws(IOException::class)
+	override fun sendTransaction(gasPrice: BigInteger, gasLimit: BigInteger, to: String, data: String, value: BigInteger): EthSendTransaction? {
+		val credentials = credentialsCache.acquire(accountAddress) ?: throw IOException("Account $accountAddress is locked")
+		return RawTransactionManager(web3j, credentials).sendTransaction(gasPrice, gasLimit, to, data, value)
+	}
+
+	override fun getFromAddress(): String {
+		return accountAddress
+	}
+}
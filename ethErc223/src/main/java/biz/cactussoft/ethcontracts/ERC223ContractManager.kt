@@ -3,8 +3,12 @@ package biz.cactussoft.ethcontracts
 import biz.cactussoft.ethcontracts.contracts.ERC223Contract
 import biz.cactussoft.ethcontracts.exceptions.TransactionException
 import biz.cactussoft.ethcontracts.models.TokenValue
-import org.web3j.crypto.WalletUtils
+import biz.cactussoft.ethcore.keystore.CredentialsCache
+import biz.cactussoft.ethcore.keystore.KeyStorage
+import biz.cactussoft.ethcore.keystore.KeyStorages
+import biz.cactussoft.ethcore.keystore.KeyStoreLayout
 import org.web3j.tx.Contract
+import java.io.File
 import java.io.IOException
 import java.math.BigInteger
 import java.util.concurrent.ExecutionException
@@ -13,7 +17,13 @@ import java.util.concurrent.ExecutionException
  * Created by viktor.chukholskiy
  * 29/05/18.
  */
-class ERC223ContractManager (nodeUrl: String, keyStoreDir: String, contractAddress: String) : BaseContractManager(nodeUrl, keyStoreDir) {
+class ERC223ContractManager (nodeUrl: String, keyStorage: KeyStorage, contractAddress: String,
+							  credentialsCache: CredentialsCache = CredentialsCache()) : BaseContractManager(nodeUrl, keyStorage, credentialsCache) {
+
+	constructor(nodeUrl: String, keyStoreDir: String, contractAddress: String,
+				credentialsCache: CredentialsCache = CredentialsCache(),
+				layout: KeyStoreLayout = KeyStoreLayout.FLAT)
+			: this(nodeUrl, KeyStorages.forPath(File(keyStoreDir), layout), contractAddress, credentialsCache)
 
 	/**
 	 * This implementation is used to connect to an existing contract and perform call operations.
@@ -70,16 +80,23 @@ class ERC223ContractManager (nodeUrl: String, keyStoreDir: String, contractAddre
 	/**
 	 * Generation of erc20 contract object, connection to real contract.
 	 * Can be used for checking for validation of parameters.
+	 * If the wallet is unlocked the contract takes one signature from the cache for every transaction
+	 * (the transactions fail after the account is locked, expired or out of signatures),
+	 * otherwise the key-file is decrypted and the contract keeps the credentials.
 	 *
 	 * @param walletAddress - wallet address
-	 * @param password - password for encryption of the key-file
+	 * @param password - password for encryption of the key-file (ignored if the wallet is unlocked)
 	 * @param contractAddress - erc20 contract address
 	 */
 	@Throws(Exception::class)
 	fun prepareERC20Contract(walletAddress: String, password: String, contractAddress: String,
 							 gasPrice: BigInteger, gasLimit: Long): ERC223Contract {
-		val credentials = WalletUtils.loadCredentials(password, getKeyFileByAddress(walletAddress))
 		val gasLimitBigInteger = BigInteger(gasLimit.toString())
+		if (mCredentialsCache.isUnlocked(walletAddress)) {
+			val transactionManager = CachedCredentialsTransactionManager(sWeb3j, mCredentialsCache, walletAddress)
+			return ERC223Contract.load("", contractAddress, sWeb3j, transactionManager, gasPrice, gasLimitBigInteger)
+		}
+		val credentials = loadCredentials(walletAddress, password)
 		return ERC223Contract.load("", contractAddress, sWeb3j, credentials, gasPrice, gasLimitBigInteger)
 	}
 
@@ -0,0 +1,109 @@
+package biz.cactussoft.ethcore
+
+import biz.cactussoft.ethcore.exceptions.IncorrectDerivationPathException
+import org.bitcoinj.crypto.ChildNumber
+import org.bitcoinj.crypto.DeterministicKey
+import org.bitcoinj.crypto.HDKeyDerivation
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.regex.Pattern
+
+/**
+ * Compiled derivation path (checked and parsed once)
+ * Basic: m / purpose' / coin_type' / account' / change
+ *
+ * The parent key of the path is derived with one CKD step per path element ([deriveParent]), and the address keys
+ * (m / ... / change / address_index) with one CKD step each from the parent ([deriveChild], [deriveChildren]),
+ * without a [org.bitcoinj.crypto.DeterministicHierarchy]. [HDWalletManager] delegates its derivations here.
+ *
+ * @param path         - derivation path (string)
+ * @param childNumbers - elements of the path
+ */
+class DerivationPath private constructor(val path: String,
+										 val childNumbers: List<ChildNumber>) {
+
+	/**
+	 * Derive the parent key of the addresses (the key at the path)
+	 *
+	 * @param masterKey - derivation master key
+	 *
+	 * @return parent key
+	 */
+	fun deriveParent(masterKey: DeterministicKey): DeterministicKey {
+		var key = masterKey
+		for (childNumber in childNumbers) {
+			key = HDKeyDerivation.deriveChildKey(key, childNumber)
+		}
+		return key
+	}
+
+	override fun toString(): String {
+		return path
+	}
+
+	companion object {
+		private const val DERIVATION_PATH_REGEX = "^m(/\\d+(')?)+$"
+		private val DERIVATION_PATH_PATTERN = Pattern.compile(DERIVATION_PATH_REGEX)
+		private const val MAX_COMPILED_PATHS = 32
+
+		private val compiledPaths = ConcurrentHashMap<String, DerivationPath>()
+
+		/**
+		 * Derive the address key (one non-hardened CKD step)
+		 *
+		 * @param parentKey - parent key (see [deriveParent])
+		 * @param index     - address index
+		 *
+		 * @return address key
+		 */
+		fun deriveChild(parentKey: DeterministicKey, index: Int): DeterministicKey {
+			return HDKeyDerivation.deriveChildKey(parentKey, ChildNumber(index))
+		}
+
+		/**
+		 * Derive the address keys of the index range (one non-hardened CKD step per key)
+		 *
+		 * @param parentKey  - parent key (see [deriveParent])
+		 * @param startIndex - start address index
+		 * @param count      - count of keys
+		 *
+		 * @return address keys in the index order
+		 */
+		fun deriveChildren(parentKey: DeterministicKey, startIndex: Int, count: Int): List<DeterministicKey> {
+			val list = ArrayList<DeterministicKey>(count)
+			(0 until count).forEach {
+				list.add(deriveChild(parentKey, startIndex + it))
+			}
+			return list
+		}
+
+		/**
+		 * Compile the derivation path (compiled paths are reused)
+		 *
+		 * @param path - derivation path (string)
+		 *
+		 * @return compiled path
+		 */
+		@Throws(IncorrectDerivationPathException::class)
+		fun compile(path: String): DerivationPath {
+			compiledPaths[path]?.let { return it }
+			if (!DERIVATION_PATH_PATTERN.matcher(path).matches()) {
+				throw IncorrectDerivationPathException("Incorrect path")
+			}
+			val indexes = path.split("/".toRegex()).dropLastWhile({ it.isEmpty() }).toTypedArray()
+			val list = ArrayList<ChildNumber>()
+			(1 until indexes.size).forEach {
+				list.add(ChildNumber(
+						Integer.valueOf(indexes[it].replace("'", ""))!!,
+						indexes[it].contains("'"))
+				)
+			}
+			val compiled = DerivationPath(path, Collections.unmodifiableList(list))
+			// paths come from the user, keep only the first ones
+			if (compiledPaths.size < MAX_COMPILED_PATHS) {
+				compiledPaths[path] = compiled
+			}
+			return compiled
+		}
+	}
+}
@@ -1,12 +1,13 @@
 package biz.cactussoft.ethcore
 
 import android.text.TextUtils
-import android.util.Log
 import biz.cactussoft.ethcore.exceptions.*
+import biz.cactussoft.ethcore.keystore.*
+import biz.cactussoft.ethcore.models.AccountResult
 import biz.cactussoft.ethcore.models.EthValue
 import biz.cactussoft.ethcore.models.HDWallet
-import com.fasterxml.jackson.databind.ObjectMapper
-import com.fasterxml.jackson.databind.node.ObjectNode
+import biz.cactussoft.ethcore.models.ImportResult
+import org.bitcoinj.crypto.DeterministicKey
 import org.bitcoinj.crypto.MnemonicException
 import org.web3j.crypto.*
 import org.web3j.protocol.ObjectMapperFactory
@@ -17,19 +18,49 @@ import org.web3j.protocol.http.HttpService
 import org.web3j.utils.Numeric
 import java.io.File
 import java.io.IOException
+import java.io.InputStream
 import java.math.BigInteger
 import java.security.InvalidAlgorithmParameterException
 import java.security.NoSuchAlgorithmException
 import java.security.NoSuchProviderException
 import java.util.ArrayList
+import java.util.Arrays
+import java.util.concurrent.Callable
 import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
 
 /**
  * Created by viktor.chukholskiy
  * 28/05/18.
+ *
+ * @param nodeUrl          - ethereum node url
+ * @param keyStorage       - storage of the key-files ([IndexedKeyStorage], [DirectoryKeyStorage], [ContainerKeyStorage] or [InMemoryKeyStorage])
+ * @param credentialsCache - cache of unlocked accounts (can be shared with other managers)
+ * @param hdAccountCache   - cache of derived hd account nodes (can be shared with other managers)
  */
 class EthManager(nodeUrl: String,
-				 private val keyStoreDir: String) {
+				 private val keyStorage: KeyStorage,
+				 private val credentialsCache: CredentialsCache = CredentialsCache(),
+				 private val hdAccountCache: HDAccountCache = HDAccountCache()) {
+
+	/**
+	 * Uses the shared indexed storage of the keystore folder (see [KeyStorages])
+	 *
+	 * @param nodeUrl          - ethereum node url
+	 * @param keyStoreDir      - keystore folder
+	 * @param scanExecutor     - optional pool for the parallel scan of the keystore folder (used while there is no index yet)
+	 * @param credentialsCache - cache of unlocked accounts (can be shared with other managers)
+	 * @param layout           - layout of the keystore folder (see [KeyStoreResharder] for migration)
+	 * @param hdAccountCache   - cache of derived hd account nodes (can be shared with other managers)
+	 */
+	constructor(nodeUrl: String,
+				keyStoreDir: String,
+				scanExecutor: ExecutorService? = null,
+				credentialsCache: CredentialsCache = CredentialsCache(),
+				layout: KeyStoreLayout = KeyStoreLayout.FLAT,
+				hdAccountCache: HDAccountCache = HDAccountCache())
+			: this(nodeUrl, KeyStorages.forPath(File(keyStoreDir), layout, scanExecutor = scanExecutor), credentialsCache, hdAccountCache)
 
 	private val sWeb3j: Web3j = Web3jFactory.build(HttpService(nodeUrl))
 
@@ -44,8 +75,9 @@ class EthManager(nodeUrl: String,
 	@Throws(NoSuchAlgorithmException::class, NoSuchProviderException::class, InvalidAlgorithmParameterException::class, EncryptionException::class, IOException::class)
 	fun createNewAccount(password: String): String {
 		try {
-			val fileName = WalletUtils.generateLightNewWalletFile(password, File(keyStoreDir))
-			return WalletUtils.loadCredentials(password, fileName).address
+			val keyPair = Keys.createEcKeyPair()
+			keyStorage.store(Wallet.createLight(password, keyPair))
+			return Credentials.create(keyPair).address
 		} catch (e: CipherException) {
 			throw EncryptionException(e)
 		}
@@ -66,9 +98,7 @@ class EthManager(nodeUrl: String,
 		try {
 			val credentials = WalletUtils.loadCredentials(password, file)
 			val walletFile = Wallet.createLight(password, credentials.ecKeyPair)
-			val destination = File(keyStoreDir, file.name)
-			val objectMapper = ObjectMapperFactory.getObjectMapper()
-			objectMapper.writeValue(destination, walletFile)
+			keyStorage.store(walletFile, file.name)
 			return credentials.address
 		} catch (e: CipherException) {
 			throw EncryptionException(e)
@@ -76,6 +106,63 @@ class EthManager(nodeUrl: String,
 
 	}
 
+	/**
+	 * Import all json files of the folder (including subfolders) in parallel.
+	 * Already imported accounts are skipped, the number of concurrent key derivations
+	 * is limited by the memory budget.
+	 *
+	 * @param password          - password of the files (using for encryption the keystore files)
+	 * @param dir               - source folder
+	 * @param executor          - pool used for the key derivations
+	 * @param memoryBudgetBytes - memory available for the key derivations (bytes)
+	 * @param listener          - optional progress listener (completed, total, result), called from the pool threads
+	 *
+	 * @return results in the order of the files
+	 */
+	@Throws(InterruptedException::class, ExecutionException::class)
+	fun importDirectory(password: String,
+						dir: File,
+						executor: ExecutorService,
+						memoryBudgetBytes: Long,
+						listener: ((Int, Int, ImportResult) -> Unit)? = null): List<ImportResult> {
+		val job = BulkImportJob(keyStorage, executor, KdfMemoryBudget(memoryBudgetBytes))
+		return job.importDirectory(password, dir, listener)
+	}
+
+	/**
+	 * Import all json entries of the zip archive in parallel.
+	 * Already imported accounts are skipped, the number of concurrent key derivations
+	 * is limited by the memory budget.
+	 *
+	 * @param password          - password of the files (using for encryption the keystore files)
+	 * @param input             - zip stream (is not closed)
+	 * @param executor          - pool used for the key derivations
+	 * @param memoryBudgetBytes - memory available for the key derivations (bytes)
+	 * @param listener          - optional progress listener (completed, total, result), called from the pool threads
+	 *
+	 * @return results in the order of the entries
+	 */
+	@Throws(IOException::class, InterruptedException::class, ExecutionException::class)
+	fun importZip(password: String,
+				  input: InputStream,
+				  executor: ExecutorService,
+				  memoryBudgetBytes: Long,
+				  listener: ((Int, Int, ImportResult) -> Unit)? = null): List<ImportResult> {
+		val job = BulkImportJob(keyStorage, executor, KdfMemoryBudget(memoryBudgetBytes))
+		return job.importZip(password, input, listener)
+	}
+
+	/**
+	 * Move existing key-files into the folders defined by the keystore layout
+	 * (e.g. reshard a flat keystore folder in place)
+	 *
+	 * @return results of the moved (or failed) key-files
+	 */
+	fun migrateKeyStore(): List<AccountResult> {
+		val storage = keyStorage as? DirectoryKeyStorage ?: throw UnsupportedOperationException("Key storage is not a folder")
+		return storage.migrate()
+	}
+
 	/**
 	 * Check is account imported on the device
 	 *
@@ -84,7 +171,7 @@ class EthManager(nodeUrl: String,
 	 * @return true if a key-file is found (imported)
 	 */
 	fun isAccountImported(accountAddress: String): Boolean {
-		return getKeyFileByAddress(accountAddress) != null
+		return keyStorage.contains(accountAddress)
 	}
 
 	/**
@@ -93,22 +180,7 @@ class EthManager(nodeUrl: String,
 	 * @return the list of addresses of imported accounts
 	 */
 	val importedAccounts: List<String>
-		get() {
-			val addresses = ArrayList<String>()
-			val files = getListFiles(File(keyStoreDir))
-			for (keyFile in files) {
-				try {
-					val node = ObjectMapper().readValue(keyFile, ObjectNode::class.java)
-					if (node.has("address")) {
-						addresses.add(node.get("address").asText())
-					}
-				} catch (e: IOException) {
-					Log.e(TAG, "Incorrect file " + keyFile.name)
-				}
-
-			}
-			return addresses
-		}
+		get() = keyStorage.addresses()
 
 	/**
 	 * Change account password, recoding key-file
@@ -123,12 +195,13 @@ class EthManager(nodeUrl: String,
 	fun changeAccountPassword(address: String,
 							  oldPassword: String,
 							  newPassword: String): String {
-		val keyFile = getKeyFileByAddress(address) ?: throw AccountNotFoundException("Account $address not found. Perhaps it was not imported.")
+		if (!keyStorage.contains(address)) {
+			throw AccountNotFoundException("Account $address not found. Perhaps it was not imported.")
+		}
 		try {
-			val credentials = WalletUtils.loadCredentials(oldPassword, keyFile)
+			val credentials = loadCredentials(address, oldPassword)
 			val walletFile = Wallet.createLight(newPassword, credentials.ecKeyPair)
-			val objectMapper = ObjectMapperFactory.getObjectMapper()
-			objectMapper.writeValue(keyFile.absoluteFile, walletFile)
+			keyStorage.store(walletFile)
 			return credentials.address
 		} catch (e: Exception) {
 			throw IncorrectPassException("Incorrect file pass")
@@ -136,6 +209,31 @@ class EthManager(nodeUrl: String,
 
 	}
 
+	/**
+	 * Change password of many accounts, recoding key-files in parallel.
+	 * The number of concurrent key derivations is limited by the memory budget,
+	 * every key-file is replaced atomically.
+	 *
+	 * @param addresses         - hex account addresses
+	 * @param oldPassword       - old password
+	 * @param newPassword       - new password
+	 * @param executor          - pool used for the key derivations
+	 * @param memoryBudgetBytes - memory available for the key derivations (bytes)
+	 * @param listener          - optional progress listener (completed, total, result), called from the pool threads
+	 *
+	 * @return results in the order of the addresses (failed accounts contain the error)
+	 */
+	@Throws(InterruptedException::class, ExecutionException::class)
+	fun changeAccountsPassword(addresses: List<String>,
+							   oldPassword: String,
+							   newPassword: String,
+							   executor: ExecutorService,
+							   memoryBudgetBytes: Long,
+							   listener: ((Int, Int, AccountResult) -> Unit)? = null): List<AccountResult> {
+		val job = PasswordRotationJob(keyStorage, executor, KdfMemoryBudget(memoryBudgetBytes))
+		return job.run(addresses, oldPassword, newPassword, listener)
+	}
+
 	/**
 	 * Export existed keystore file
 	 *
@@ -149,9 +247,8 @@ class EthManager(nodeUrl: String,
 					  password: String,
 					  newPassword: String,
 					  newDir: String) {
-		val keyFile = getKeyFileByAddress(accountAddress) ?: throw AccountNotFoundException("Account $accountAddress not found. Perhaps it was not imported.")
 		try {
-			val credentials = WalletUtils.loadCredentials(password, keyFile)
+			val credentials = loadCredentials(accountAddress, password)
 			val walletFile = Wallet.createLight(newPassword, credentials.ecKeyPair)
 			val destination = File(newDir)
 			val objectMapper = ObjectMapperFactory.getObjectMapper()
@@ -162,6 +259,48 @@ class EthManager(nodeUrl: String,
 
 	}
 
+	/**
+	 * Unlock account: decrypt the key-file once and keep the credentials in the cache,
+	 * so transactions from the account are signed without decryption of the key-file
+	 * (the password of [sendEthTransaction] is not checked while the account is unlocked)
+	 *
+	 * @param accountAddress - hex account address
+	 * @param password       - password of the key-file
+	 * @param durationMillis - unlock duration (milliseconds)
+	 * @param signatures     - number of allowed signatures (unlimited by default)
+	 */
+	@Throws(AccountNotFoundException::class, IOException::class, EncryptionException::class)
+	fun unlockAccount(accountAddress: String,
+					  password: String,
+					  durationMillis: Long,
+					  signatures: Int = CredentialsCache.UNLIMITED_SIGNATURES) {
+		try {
+			val credentials = loadCredentials(accountAddress, password)
+			credentialsCache.unlock(accountAddress, credentials, durationMillis, signatures)
+		} catch (e: CipherException) {
+			throw EncryptionException(e)
+		}
+
+	}
+
+	/**
+	 * Lock account (wipe the cached key)
+	 *
+	 * @param accountAddress - hex account address
+	 *
+	 * @return true if the account was unlocked
+	 */
+	fun lockAccount(accountAddress: String): Boolean {
+		return credentialsCache.lock(accountAddress)
+	}
+
+	/**
+	 * Lock all unlocked accounts
+	 */
+	fun lockAllAccounts() {
+		credentialsCache.lockAll()
+	}
+
 	/**
 	 * Deleting account (key-file from key-store folder).
 	 *
@@ -170,8 +309,11 @@ class EthManager(nodeUrl: String,
 	 * @return true if deleting success
 	 */
 	fun deleteKeyFileByAddress(accountAddress: String): Boolean {
-		val file = getKeyFileByAddress(accountAddress)
-		return file != null && file.delete()
+		if (keyStorage.delete(accountAddress)) {
+			credentialsCache.lock(accountAddress)
+			return true
+		}
+		return false
 	}
 
 	/**
@@ -190,19 +332,18 @@ class EthManager(nodeUrl: String,
 	/**
 	 * Sending transaction (simple eth transaction)
 	 *
-	 * @param password using for encryption the keystore file
+	 * @param password using for encryption the keystore file (ignored if the account is unlocked)
 	 *
 	 * @return transaction hex
 	 */
-	@Throws(InterruptedException::class, ExecutionException::class, IOException::class, EncryptionException::class)
+	@Throws(InterruptedException::class, ExecutionException::class, IOException::class, EncryptionException::class, AccountNotFoundException::class)
 	fun sendEthTransaction(addressFrom: String,
 						   addressTo: String,
 						   value: EthValue,
 						   password: String,
 						   gasPrice: EthValue,
 						   gasLimit: Long): String? {
-		val keyFile = getKeyFileByAddress(addressFrom)
-		if (keyFile != null) {
+		if (keyStorage.contains(addressFrom)) {
 			try {
 				val ethGetTransactionCount = sWeb3j.ethGetTransactionCount(addressFrom, DefaultBlockParameterName.LATEST).sendAsync().get()
 
@@ -210,7 +351,8 @@ class EthManager(nodeUrl: String,
 				val rawTransaction = RawTransaction.createEtherTransaction(nonce, gasPrice.value,
 						BigInteger(gasLimit.toString()), addressTo, value.value)
 
-				val signedMessage = TransactionEncoder.signMessage(rawTransaction, WalletUtils.loadCredentials(password, keyFile))
+				val credentials = credentialsCache.acquire(addressFrom) ?: loadCredentials(addressFrom, password)
+				val signedMessage = TransactionEncoder.signMessage(rawTransaction, credentials)
 				val hexValue = Numeric.toHexString(signedMessage)
 
 				val ethSendTransaction = sWeb3j.ethSendRawTransaction(hexValue).sendAsync().get()
@@ -279,19 +421,12 @@ class EthManager(nodeUrl: String,
 					passphrase: String,
 					path: String,
 					vararg indexes: Int): List<HDWallet> {
-		try {
-			val seed = HDWalletManager.mnemonicToSeed(mnemonic, passphrase)
-			val masterKey = HDWalletManager.generateMasterKey(seed)
-			val wallets = ArrayList<HDWallet>()
-			for (addressIndex in indexes) {
-				val child = HDWalletManager.getChildKey(masterKey, path, addressIndex)
-				val credentials = Credentials.create(child.privateKeyAsHex)
-				wallets.add(HDWallet(child, credentials.address, addressIndex))
-			}
-			return wallets
-		} catch (e: MnemonicException) {
-			throw IncorrectMnemonicException(e)
+		val accountKey = getAccountKey(mnemonic, passphrase, path)
+		val wallets = ArrayList<HDWallet>()
+		for (addressIndex in indexes) {
+			wallets.add(toHDWallet(HDWalletManager.getAddressKeys(accountKey, addressIndex, 1)[0]))
 		}
+		return wallets
 
 	}
 
@@ -327,20 +462,103 @@ class EthManager(nodeUrl: String,
 								path: String,
 								startIndex: Int,
 								count: Int): List<HDWallet> {
+		val accountKey = getAccountKey(mnemonic, passphrase, path)
+		return toHDWallets(HDWalletManager.getAddressKeys(accountKey, startIndex, count))
+	}
+
+	/**
+	 * Get deterministic keys of a large index range on the executor.
+	 * The account node is derived once and shared, the range is split into chunks of
+	 * [HD_RANGE_CHUNK_SIZE] addresses which are derived by separate tasks. Blocks until all chunks are done.
+	 *
+	 * @param mnemonic   - mnemonic (12 words)
+	 * @param passphrase - optional password using for greater safety (empty by default)
+	 * @param path       - derivation path (string)
+	 * @param startIndex - start address index
+	 * @param count      - count of elements
+	 * @param executor   - pool used for the derivations (its size defines the parallelism)
+	 *
+	 * @return generated deterministic keys (list of hd wallets) in the index order
+	 */
+	@Throws(IncorrectMnemonicException::class, IOException::class, IncorrectDerivationPathException::class,
+			InterruptedException::class, ExecutionException::class)
+	fun getConsecutiveHDWallets(mnemonic: List<String>,
+								passphrase: String,
+								path: String,
+								startIndex: Int,
+								count: Int,
+								executor: ExecutorService): List<HDWallet> {
+		val accountKey = getAccountKey(mnemonic, passphrase, path)
+		val futures = ArrayList<Future<List<HDWallet>>>()
 		try {
-			val seed = HDWalletManager.mnemonicToSeed(mnemonic, passphrase)
-			val masterKey = HDWalletManager.generateMasterKey(seed)
-			val childKeys = HDWalletManager.getChildKeys(masterKey, path, startIndex, count)
-			val wallets = ArrayList<HDWallet>()
-			for (key in childKeys) {
-				val credentials = Credentials.create(key.privateKeyAsHex)
-				wallets.add(HDWallet(key, credentials.address, key.childNumber.i))
+			var offset = 0
+			while (offset < count) {
+				val chunkStart = startIndex + offset
+				val chunkSize = Math.min(HD_RANGE_CHUNK_SIZE, count - offset)
+				futures.add(executor.submit(Callable<List<HDWallet>> {
+					toHDWallets(HDWalletManager.getAddressKeys(accountKey, chunkStart, chunkSize))
+				}))
+				offset += chunkSize
+			}
+			val wallets = ArrayList<HDWallet>(count)
+			for (future in futures) {
+				wallets.addAll(future.get())
 			}
 			return wallets
-		} catch (e: MnemonicException) {
-			throw IncorrectMnemonicException(e)
+		} finally {
+			// stop the remaining chunks if a chunk failed or the waiting thread was interrupted
+			for (future in futures) {
+				future.cancel(true)
+			}
 		}
+	}
+
+	private fun toHDWallets(keys: List<DeterministicKey>): List<HDWallet> {
+		val wallets = ArrayList<HDWallet>(keys.size)
+		for (key in keys) {
+			wallets.add(toHDWallet(key))
+		}
+		return wallets
+	}
+
+	private fun toHDWallet(key: DeterministicKey): HDWallet {
+		// the derivation already computed the public key, Credentials.create(privateKeyAsHex) would compute it again
+		val publicKey = key.pubKeyPoint.getEncoded(false)
+		val keyPair = ECKeyPair(key.privKey, BigInteger(1, Arrays.copyOfRange(publicKey, 1, publicKey.size)))
+		return HDWallet(key, Credentials.create(keyPair).address, key.childNumber.i)
+	}
+
+	/**
+	 * Clear the cache of derived hd account nodes (wipe the cached keys)
+	 */
+	fun clearHDAccountCache() {
+		hdAccountCache.clear()
+	}
 
+	/**
+	 * Get the account node of the derivation path, derived only on the first call for
+	 * the mnemonic, passphrase and path (see [HDAccountCache])
+	 *
+	 * @param mnemonic   - mnemonic (12 words)
+	 * @param passphrase - optional password using for greater safety
+	 * @param path       - derivation path (string)
+	 *
+	 * @return account node
+	 */
+	@Throws(IncorrectMnemonicException::class, IOException::class, IncorrectDerivationPathException::class)
+	private fun getAccountKey(mnemonic: List<String>,
+							  passphrase: String,
+							  path: String): DeterministicKey {
+		return hdAccountCache.getOrDerive(mnemonic, passphrase, path) {
+			try {
+				val seed = HDWalletManager.mnemonicToSeed(mnemonic, passphrase)
+				val masterKey = HDWalletManager.generateMasterKey(seed)
+				Arrays.fill(seed, 0.toByte())
+				HDWalletManager.getAccountKey(masterKey, path)
+			} catch (e: MnemonicException) {
+				throw IncorrectMnemonicException(e)
+			}
+		}
 	}
 
 	/**
@@ -348,7 +566,7 @@ class EthManager(nodeUrl: String,
 	 *
 	 * @param hdWallet    - hd wallet
 	 * @param password    - password for encryption of the file
-	 * @param keyStoreDir - key store directory (file)
+	 * @param keyStoreDir - key store directory (file), the key storage of the manager is used if it is the same folder
 	 *
 	 * @return address of the hd wallet
 	 */
@@ -357,9 +575,13 @@ class EthManager(nodeUrl: String,
 					 password: String,
 					 keyStoreDir: File): String {
 		val credentials = Credentials.create(hdWallet.key!!.privateKeyAsHex)
-		val destination = File(keyStoreDir.absolutePath)
 		try {
-			WalletUtils.generateWalletFile(password, credentials.ecKeyPair, destination, false)
+			val storage = keyStorage as? DirectoryKeyStorage
+			if (storage != null && storage.keyStoreDir == keyStoreDir.absoluteFile) {
+				storage.store(Wallet.createLight(password, credentials.ecKeyPair))
+			} else {
+				WalletUtils.generateWalletFile(password, credentials.ecKeyPair, keyStoreDir, false)
+			}
 			return credentials.address
 		} catch (e: CipherException) {
 			throw EncryptionException(e)
@@ -368,66 +590,25 @@ class EthManager(nodeUrl: String,
 	}
 
 	/**
-	 * Tries to find the key-file in the keystore folder by the address
+	 * Decrypt the stored key-file of the account
 	 *
 	 * @param accountAddress - hex address of the account
+	 * @param password       - password of the key-file
 	 *
-	 * @return key-file if it is found (otherwise null)
+	 * @return credentials of the account
 	 */
-	private fun getKeyFileByAddress(accountAddress: String): File? {
-		var address = accountAddress
-		val files = getListFiles(File(keyStoreDir))
-		if (address.startsWith(ACCOUNT_PREFIX)) {
-			address = address.substring(ACCOUNT_PREFIX.length)
-		}
-		for (keyFile in files) {
-			try {
-				val node = ObjectMapper().readValue(keyFile, ObjectNode::class.java)
-				if (node.has(ACCOUNT_FIELD_NAME)) {
-					if (address.equals(node.get(ACCOUNT_FIELD_NAME).asText(), ignoreCase = true)) {
-						return keyFile
-					}
-				}
-			} catch (e: IOException) {
-				Log.e(TAG, "Incorrect file " + keyFile.name)
-			}
-
-		}
-		return null
-	}
-
-	/**
-	 * Provides a list of all json files in the keystore folder
-	 *
-	 * @param parentDir - keystore folder
-	 *
-	 * @return list of json files
-	 */
-	private fun getListFiles(parentDir: File): List<File> {
-		val inFiles = ArrayList<File>()
-		val files = parentDir.listFiles()
-		for (file in files) {
-			if (file.isDirectory) {
-				inFiles.addAll(getListFiles(file))
-			} else {
-				if (file.name.endsWith(KEY_FILE_FORMAT)) {
-					inFiles.add(file)
-				}
-			}
-		}
-		return inFiles
+	@Throws(AccountNotFoundException::class, IOException::class, CipherException::class)
+	private fun loadCredentials(accountAddress: String, password: String): Credentials {
+		val walletFile = keyStorage.load(accountAddress) ?: throw AccountNotFoundException("Account $accountAddress not found. Perhaps it was not imported.")
+		return Credentials.create(KeyFileDecryptor.decrypt(password, walletFile))
 	}
 
 	companion object {
 
 		const val DEFAULT_DERIVATION_PATH = "m/44'/60'/0'/0"
+		const val HD_RANGE_CHUNK_SIZE = 256
 
 		private const val DEFAULT_MNEMONIC_PASSPHRASE = ""
-		private const val ACCOUNT_PREFIX = "0x"
-		private const val ACCOUNT_FIELD_NAME = "address"
-		private const val KEY_FILE_FORMAT = ".json"
-
-		private val TAG = EthManager::class.java.simpleName
 
 		/**
 		 * Convert mnemonic words list to string
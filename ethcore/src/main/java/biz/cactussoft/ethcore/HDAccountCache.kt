@@ -0,0 +1,206 @@
+package biz.cactussoft.ethcore
+
+import org.bitcoinj.crypto.DeterministicKey
+import org.bitcoinj.params.MainNetParams
+import org.web3j.utils.Numeric
+import java.security.SecureRandom
+import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Cache of derived account nodes (the key at the derivation path, for example m/44'/60'/0'/0),
+ * so the seed, the master key and the hardened steps aren't computed again for every page of addresses.
+ *
+ * An entry is keyed by a fingerprint of (mnemonic, passphrase, path): HMAC-SHA256 with a random salt
+ * of the cache instance, the mnemonic itself is not kept. The node is kept as its BIP-32 serialization
+ * (depth, parent fingerprint, child number, chain code and private key) in a byte array which is wiped when
+ * the entry is removed, cleared or evicted (the least recently used entry is evicted when the cache is full).
+ * Note: a [DeterministicKey] returned by [getOrDerive] is deserialized from the bytes, so its depth, parent
+ * fingerprint and serialization match the derived key, but it has no parent nodes and its path holds only
+ * its own child number (as for any deserialized key). It holds its own copy of the key which can't be wiped,
+ * so it should not be stored by the caller.
+ *
+ * @param maxSize - maximum number of cached account nodes
+ */
+class HDAccountCache(private val maxSize: Int = DEFAULT_MAX_SIZE) {
+
+	private class AccountNode(val serialized: ByteArray) {
+		var wiped = false
+
+		fun toKey(): DeterministicKey {
+			return DeterministicKey.deserialize(SERIALIZATION_PARAMS, serialized)
+		}
+
+		fun wipe() {
+			Arrays.fill(serialized, 0.toByte())
+			wiped = true
+		}
+	}
+
+	private val salt = ByteArray(SALT_SIZE).also { SecureRandom().nextBytes(it) }
+	// derivations in progress, the callers of the same node wait for one derivation
+	private val pending = HashMap<String, FutureTask<AccountNode>>()
+	private var generation = 0
+
+	private val entries = object : LinkedHashMap<String, AccountNode>(16, 0.75f, true) {
+		override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, AccountNode>): Boolean {
+			if (size > maxSize) {
+				eldest.value.wipe()
+				return true
+			}
+			return false
+		}
+	}
+
+	/**
+	 * Get the cached account node or derive and cache it. Concurrent calls for the same node wait for
+	 * one derivation instead of repeating it, calls for other nodes don't wait.
+	 *
+	 * @param mnemonic   - mnemonic phrase (list)
+	 * @param passphrase - passphrase of the seed
+	 * @param path       - derivation path of the node (string)
+	 * @param derive     - derivation of the node (called if it is not cached)
+	 *
+	 * @return account node
+	 */
+	fun getOrDerive(mnemonic: List<String>,
+					passphrase: String,
+					path: String,
+					derive: () -> DeterministicKey): DeterministicKey {
+		val fingerprint = fingerprint(mnemonic, passphrase, path)
+		while (true) {
+			var task: FutureTask<AccountNode>? = null
+			var owner = false
+			var startGeneration = 0
+			synchronized(this) {
+				val node = entries[fingerprint]
+				if (node != null) {
+					return node.toKey()
+				}
+				task = pending[fingerprint]
+				if (task == null) {
+					task = FutureTask(Callable { toNode(derive()) })
+					pending[fingerprint] = task!!
+					owner = true
+					startGeneration = generation
+				}
+			}
+			val derivation = task!!
+			if (owner) {
+				derivation.run()
+				synchronized(this) {
+					pending.remove(fingerprint)
+					val node = try {
+						derivation.get()
+					} catch (e: ExecutionException) {
+						null // rethrown below
+					}
+					if (node != null) {
+						// built before caching: a full cache can evict (and wipe) the new node right away
+						val key = node.toKey()
+						// not cached if the cache was cleared during the derivation
+						if (generation == startGeneration) {
+							entries[fingerprint] = node
+						}
+						return key
+					}
+				}
+			}
+			val node = await(derivation)
+			synchronized(this) {
+				// the node could be evicted and wiped before this caller got it, derive it again then
+				if (!node.wiped) {
+					return node.toKey()
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check is account node cached
+	 *
+	 * @param mnemonic   - mnemonic phrase (list)
+	 * @param passphrase - passphrase of the seed
+	 * @param path       - derivation path of the node (string)
+	 */
+	@Synchronized
+	fun contains(mnemonic: List<String>, passphrase: String, path: String): Boolean {
+		return entries.containsKey(fingerprint(mnemonic, passphrase, path))
+	}
+
+	/**
+	 * Remove the account node and wipe its key
+	 *
+	 * @param mnemonic   - mnemonic phrase (list)
+	 * @param passphrase - passphrase of the seed
+	 * @param path       - derivation path of the node (string)
+	 *
+	 * @return true if the node was cached
+	 */
+	@Synchronized
+	fun remove(mnemonic: List<String>, passphrase: String, path: String): Boolean {
+		val node = entries.remove(fingerprint(mnemonic, passphrase, path)) ?: return false
+		node.wipe()
+		return true
+	}
+
+	/**
+	 * Remove all account nodes and wipe their keys
+	 */
+	@Synchronized
+	fun clear() {
+		for (node in entries.values) {
+			node.wipe()
+		}
+		entries.clear()
+		generation++
+	}
+
+	private fun toNode(key: DeterministicKey): AccountNode {
+		return AccountNode(key.serializePrivate(SERIALIZATION_PARAMS))
+	}
+
+	private fun await(task: FutureTask<AccountNode>): AccountNode {
+		var interrupted = false
+		try {
+			while (true) {
+				try {
+					return task.get()
+				} catch (e: InterruptedException) {
+					interrupted = true
+				} catch (e: ExecutionException) {
+					throw e.cause ?: e
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt()
+			}
+		}
+	}
+
+	private fun fingerprint(mnemonic: List<String>, passphrase: String, path: String): String {
+		val mac = Mac.getInstance(FINGERPRINT_ALGORITHM)
+		mac.init(SecretKeySpec(salt, FINGERPRINT_ALGORITHM))
+		// the words can't contain the separator and the passphrase is length-prefixed, so the input is unambiguous
+		val input = mnemonic.joinToString(" ") + "\u0000" + passphrase.length + ":" + passphrase + "\u0000" + path
+		val bytes = input.toByteArray(Charsets.UTF_8)
+		try {
+			return Numeric.toHexStringNoPrefix(mac.doFinal(bytes))
+		} finally {
+			Arrays.fill(bytes, 0.toByte())
+		}
+	}
+
+	companion object {
+		private const val DEFAULT_MAX_SIZE = 4
+		// only the version bytes of the serialization depend on the network
+		private val SERIALIZATION_PARAMS = MainNetParams.get()
+		private const val SALT_SIZE = 32
+		private const val FINGERPRINT_ALGORITHM = "HmacSHA256"
+	}
+}
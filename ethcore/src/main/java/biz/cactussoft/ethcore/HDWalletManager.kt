@@ -1,10 +1,11 @@
 package biz.cactussoft.ethcore
 
 import biz.cactussoft.ethcore.exceptions.IncorrectDerivationPathException
+import com.lambdaworks.crypto.PBKDF
 import org.bitcoinj.crypto.*
 import java.io.IOException
+import java.security.GeneralSecurityException
 import java.util.*
-import java.util.regex.Pattern
 
 /**
  * Created by viktor.chukholskiy
@@ -13,8 +14,9 @@ import java.util.regex.Pattern
 
 class HDWalletManager {
 	companion object {
-		private val DERIVATION_PATH_REGEX = "^m(/\\d+(')?)+$"
-		private val DERIVATION_PATH_PATTERN = Pattern.compile(DERIVATION_PATH_REGEX)
+		private const val SEED_SALT_PREFIX = "mnemonic"
+		private const val SEED_ITERATIONS = 2048
+		private const val SEED_LENGTH = 64
 
 		/**
 		 * Generate new mnemonic phrase (12 words, BIP-39)
@@ -49,7 +51,8 @@ class HDWalletManager {
 		/**
 		 * Generation of a seed (64 bytes) based on a mnemonic phrase and an optional passphrase (BIP-39)
 		 * We use the PBKDF2 function with a mnemonic sentence (in UTF-8 NFKD) used as the passphrase
-		 * and the string "mnemonic" + passphrase (again in UTF-8 NFKD) used as the salt
+		 * and the string "mnemonic" + passphrase (again in UTF-8 NFKD) used as the salt.
+		 * Same result as MnemonicCode.toSeed, but the HMAC-SHA512 rounds go through [PBKDF.pbkdf2HmacSHA512]
 		 *
 		 * @param mnemonic   - mnemonic phrase (list, 12 words)
 		 * @param passphrase - optional passphrase used for seed generation.
@@ -61,7 +64,15 @@ class HDWalletManager {
 						   passphrase: String): ByteArray {
 			val mnemonicCode = MnemonicCode()
 			mnemonicCode.check(mnemonic)
-			return MnemonicCode.toSeed(mnemonic, passphrase)
+			val password = mnemonic.joinToString(" ").toByteArray(Charsets.UTF_8)
+			val salt = (SEED_SALT_PREFIX + passphrase).toByteArray(Charsets.UTF_8)
+			try {
+				return PBKDF.pbkdf2HmacSHA512(password, salt, SEED_ITERATIONS, SEED_LENGTH)
+			} catch (e: GeneralSecurityException) {
+				throw IllegalStateException(e)
+			} finally {
+				Arrays.fill(password, 0)
+			}
 		}
 
 		/**
@@ -112,41 +123,6 @@ class HDWalletManager {
 			return "m/$purpose'/$coin'/$account'/$change"
 		}
 
-		/**
-		 * Check is derivation path have right structure
-		 * Basic: m / purpose' / coin_type' / account' / change / address_index
-		 *
-		 * @param path - derivation path
-		 *
-		 * @return is path correct
-		 */
-		private fun isPathCorrect(path: String): Boolean {
-			return DERIVATION_PATH_PATTERN.matcher(path).matches()
-		}
-
-		/**
-		 * Convert string derivation path to list of ChildNumber
-		 *
-		 * @param path - derivation path
-		 *
-		 * @return list of indexes
-		 */
-		@Throws(IncorrectDerivationPathException::class)
-		private fun convertPath(path: String): List<ChildNumber> {
-			if (!isPathCorrect(path)) {
-				throw IncorrectDerivationPathException("Incorrect path")
-			}
-			val indexes = path.split("/".toRegex()).dropLastWhile({ it.isEmpty() }).toTypedArray()
-			val list = ArrayList<ChildNumber>()
-			(1 until indexes.size).forEach {
-				list.add(ChildNumber(
-						Integer.valueOf(indexes[it].replace("'", ""))!!,
-						indexes[it].contains("'"))
-				)
-			}
-			return list
-		}
-
 		/**
 		 * Convert string derivation path to list of integer
 		 *
@@ -156,15 +132,7 @@ class HDWalletManager {
 		 */
 		@Throws(IncorrectDerivationPathException::class)
 		fun convertPathToIntArray(path: String): List<Int> {
-			if (!isPathCorrect(path)) {
-				throw IncorrectDerivationPathException("Incorrect path")
-			}
-			val indexes = path.split("/".toRegex()).dropLastWhile({ it.isEmpty() }).toTypedArray()
-			val list = ArrayList<Int>()
-			(1 until indexes.size).forEach {
-				list.add(Integer.valueOf(indexes[it].replace("'", "")))
-			}
-			return list
+			return DerivationPath.compile(path).childNumbers.map { it.num() }
 		}
 
 		/**
@@ -172,61 +140,50 @@ class HDWalletManager {
 		 * and address index
 		 *
 		 * @param masterKey - derivation master key
-		 * @param path      - derivation path (list)
+		 * @param path      - derivation path (string)
 		 * @param index     - address index
 		 *
 		 * @return generated deterministic key
 		 */
-		private fun getChildKey(masterKey: DeterministicKey,
-								path: List<ChildNumber>,
-								index: ChildNumber): DeterministicKey {
-			val hierarchy = DeterministicHierarchy(masterKey)
-			return hierarchy.deriveChild(path, true, true, index)
+		@Throws(IncorrectDerivationPathException::class)
+		fun getChildKey(masterKey: DeterministicKey,
+						path: String,
+						index: Int): DeterministicKey {
+			return DerivationPath.deriveChild(DerivationPath.compile(path).deriveParent(masterKey), index)
 		}
 
 		/**
-		 * Get child deterministic key generated by master key, derivation path
-		 * and address index
+		 * Get deterministic key of the derivation path (account node), the parent of the address keys
 		 *
 		 * @param masterKey - derivation master key
 		 * @param path      - derivation path (string)
-		 * @param index     - address index
 		 *
 		 * @return generated deterministic key
 		 */
 		@Throws(IncorrectDerivationPathException::class)
-		fun getChildKey(masterKey: DeterministicKey,
-						path: String,
-						index: Int): DeterministicKey {
-			return getChildKey(masterKey, convertPath(path), ChildNumber(index))
+		fun getAccountKey(masterKey: DeterministicKey,
+						  path: String): DeterministicKey {
+			return DerivationPath.compile(path).deriveParent(masterKey)
 		}
 
 		/**
-		 * Get array of child deterministic keys generated by master key, derivation path
-		 * and start address index and count
+		 * Get array of address keys of the account node (one non-hardened derivation per key)
 		 *
-		 * @param masterKey  - derivation master key
-		 * @param path       - derivation path (list)
+		 * @param accountKey - account node (see [getAccountKey])
 		 * @param startIndex - start address index
 		 * @param count      - count of keys
 		 *
-		 * @return generated deterministic key
+		 * @return generated deterministic keys
 		 */
-		private fun getChildKeys(masterKey: DeterministicKey,
-								 path: List<ChildNumber>,
-								 startIndex: Int,
-								 count: Int): List<DeterministicKey> {
-			val hierarchy = DeterministicHierarchy(masterKey)
-			val list = ArrayList<DeterministicKey>()
-			(0 until count).forEach {
-				list.add(hierarchy.deriveChild(path, true, true, ChildNumber(startIndex + it)))
-			}
-			return list
+		fun getAddressKeys(accountKey: DeterministicKey,
+						   startIndex: Int,
+						   count: Int): List<DeterministicKey> {
+			return DerivationPath.deriveChildren(accountKey, startIndex, count)
 		}
 
 		/**
 		 * Get array of child deterministic keys generated by master key, derivation path
-		 * and start address index and count
+		 * and start address index and count. The path is derived once, then one CKD step per key.
 		 *
 		 * @param masterKey  - derivation master key
 		 * @param path       - derivation path (string)
@@ -240,7 +197,7 @@ class HDWalletManager {
 						 path: String,
 						 startIndex: Int,
 						 count: Int): List<DeterministicKey> {
-			return getChildKeys(masterKey, convertPath(path), startIndex, count)
+			return DerivationPath.deriveChildren(DerivationPath.compile(path).deriveParent(masterKey), startIndex, count)
 		}
 	}
 }
@@ -0,0 +1,182 @@
+package biz.cactussoft.ethcore.keystore
+
+import biz.cactussoft.ethcore.exceptions.EncryptionException
+import biz.cactussoft.ethcore.models.ImportResult
+import org.web3j.crypto.CipherException
+import org.web3j.crypto.Keys
+import org.web3j.crypto.Wallet
+import org.web3j.crypto.WalletFile
+import org.web3j.protocol.ObjectMapperFactory
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.ZipInputStream
+
+/**
+ * Bulk import of key-files from a folder or a zip archive.
+ * Every key-file is validated (decrypted) and re-encrypted (light scrypt params) by a separate task,
+ * the number of concurrent key derivations is limited by the memory budget.
+ * Accounts which are already imported are skipped without decryption (the storage is checked once,
+ * before the import).
+ *
+ * @param keyStorage   - storage of the key-files
+ * @param executor     - pool used for the key derivations
+ * @param memoryBudget - memory budget of the key derivations
+ */
+class BulkImportJob(private val keyStorage: KeyStorage,
+					private val executor: ExecutorService,
+					private val memoryBudget: KdfMemoryBudget) {
+
+	private class Source(val name: String,
+						 val file: File?,
+						 val content: ByteArray?)
+
+	/**
+	 * Import all json files of the folder (including subfolders). Blocks until all files are processed.
+	 *
+	 * @param password - password of the key-files (used for re-encryption as well)
+	 * @param dir      - source folder
+	 * @param listener - optional progress listener (completed, total, result), called from the pool threads
+	 *
+	 * @return results in the order of the files
+	 */
+	@Throws(InterruptedException::class, ExecutionException::class)
+	fun importDirectory(password: String,
+						dir: File,
+						listener: ((Int, Int, ImportResult) -> Unit)? = null): List<ImportResult> {
+		val sources = ArrayList<Source>()
+		for (file in KeyFileReader.listKeyFiles(dir)) {
+			sources.add(Source(file.name, file, null))
+		}
+		return run(password, sources, listener)
+	}
+
+	/**
+	 * Import all json entries of the zip archive. Blocks until all entries are processed.
+	 *
+	 * @param password - password of the key-files (used for re-encryption as well)
+	 * @param input    - zip stream (is not closed)
+	 * @param listener - optional progress listener (completed, total, result), called from the pool threads
+	 *
+	 * @return results in the order of the entries
+	 */
+	@Throws(IOException::class, InterruptedException::class, ExecutionException::class)
+	fun importZip(password: String,
+				  input: InputStream,
+				  listener: ((Int, Int, ImportResult) -> Unit)? = null): List<ImportResult> {
+		val sources = ArrayList<Source>()
+		val zip = ZipInputStream(input)
+		var entry = zip.nextEntry
+		while (entry != null) {
+			if (!entry.isDirectory && entry.name.endsWith(KeyStoreIndex.KEY_FILE_FORMAT)) {
+				sources.add(Source(File(entry.name).name, null, readEntry(zip)))
+			}
+			zip.closeEntry()
+			entry = zip.nextEntry
+		}
+		return run(password, sources, listener)
+	}
+
+	private fun run(password: String,
+					sources: List<Source>,
+					listener: ((Int, Int, ImportResult) -> Unit)?): List<ImportResult> {
+		val imported = Collections.newSetFromMap(ConcurrentHashMap<String, Boolean>())
+		imported.addAll(keyStorage.addresses())
+		val completed = AtomicInteger()
+		val futures = ArrayList<Future<ImportResult>>()
+		try {
+			for (source in sources) {
+				futures.add(executor.submit(Callable<ImportResult> {
+					val result = importKeyFile(password, source, imported)
+					listener?.invoke(completed.incrementAndGet(), sources.size, result)
+					result
+				}))
+			}
+			val results = ArrayList<ImportResult>()
+			for (future in futures) {
+				results.add(future.get())
+			}
+			return results
+		} finally {
+			// nobody collects the results after a failure or an interruption
+			for (future in futures) {
+				future.cancel(true)
+			}
+		}
+	}
+
+	private fun importKeyFile(password: String,
+							  source: Source,
+							  imported: MutableSet<String>): ImportResult {
+		var address: String? = null
+		try {
+			val objectMapper = ObjectMapperFactory.getObjectMapper()
+			val walletFile = if (source.content != null) {
+				objectMapper.readValue(source.content, WalletFile::class.java)
+			} else {
+				objectMapper.readValue(source.file, WalletFile::class.java)
+			}
+			address = walletFile.address?.let { KeyStoreIndex.normalizeAddress(it) }
+			if (address != null && !imported.add(address)) {
+				return ImportResult(source.name, address, null, true, null)
+			}
+			val permits = memoryBudget.acquire(KdfMemoryBudget.decryptionCost(walletFile))
+			val keyPair = try {
+				KeyFileDecryptor.decrypt(password, walletFile)
+			} finally {
+				memoryBudget.release(permits)
+			}
+			val keyAddress = KeyStoreIndex.normalizeAddress(Keys.getAddress(keyPair))
+			if (address == null) {
+				address = keyAddress
+				if (!imported.add(keyAddress)) {
+					return ImportResult(source.name, keyAddress, null, true, null)
+				}
+			} else if (address != keyAddress) {
+				throw IOException("Address of the file doesn't match the key")
+			}
+			val encryptionPermits = memoryBudget.acquire(KdfMemoryBudget.lightEncryptionCost())
+			val destination = try {
+				keyStorage.store(Wallet.createLight(password, keyPair), source.name)
+			} finally {
+				memoryBudget.release(encryptionPermits)
+			}
+			return ImportResult(source.name, keyAddress, destination, false, null)
+		} catch (e: CipherException) {
+			address?.let { imported.remove(it) }
+			return ImportResult(source.name, address, null, false, EncryptionException(e))
+		} catch (e: InterruptedException) {
+			Thread.currentThread().interrupt()
+			address?.let { imported.remove(it) }
+			return ImportResult(source.name, address, null, false, e)
+		} catch (e: Exception) {
+			// bad json, unsupported kdf, io errors
+			address?.let { imported.remove(it) }
+			return ImportResult(source.name, address, null, false, e)
+		}
+	}
+
+	@Throws(IOException::class)
+	private fun readEntry(zip: ZipInputStream): ByteArray {
+		val output = ByteArrayOutputStream()
+		val buffer = ByteArray(BUFFER_SIZE)
+		var length = zip.read(buffer)
+		while (length > 0) {
+			output.write(buffer, 0, length)
+			length = zip.read(buffer)
+		}
+		return output.toByteArray()
+	}
+
+	companion object {
+		private const val BUFFER_SIZE = 4096
+	}
+}
@@ -0,0 +1,404 @@
+package biz.cactussoft.ethcore.keystore
+
+import biz.cactussoft.ethcore.models.AccountResult
+import org.web3j.crypto.WalletFile
+import org.web3j.protocol.ObjectMapperFactory
+import org.web3j.utils.Numeric
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+
+/**
+ * All key-files stored in one append-only container file, memory-mapped through NIO.
+ *
+ * File: header (magic, version, record count) followed by fixed-layout records
+ * (status, address, kdf params, salt, iv, ciphertext, mac, id). A new or changed account
+ * is appended, a replaced or deleted record is only marked as deleted ([compact] drops them).
+ * The offset index (address -> record) is built by one pass over the mapped records on open,
+ * lookups read the record straight from the mapped buffer.
+ *
+ * A record is written and flushed before the record count publishes it, and the replaced record
+ * is marked as deleted only after that. So an interrupted [store] leaves either the old record
+ * or both of them, and on open the last record of the address wins.
+ *
+ * Only version 3 key-files with aes-128-ctr cipher, 32 bytes salt/ciphertext/mac
+ * and scrypt or pbkdf2 (hmac-sha256) kdf can be stored (web3j and geth key-files).
+ *
+ * @param containerFile - container file (created if it doesn't exist)
+ */
+class ContainerKeyStorage(containerFile: File) : KeyStorage, Closeable {
+
+	private val file = containerFile.absoluteFile
+	private var channel: FileChannel
+	private var buffer: MappedByteBuffer
+	private var recordCount = 0
+	private val offsets = HashMap<String, Int>()
+
+	init {
+		file.parentFile?.mkdirs()
+		channel = RandomAccessFile(file, "rw").channel
+		if (channel.size() == 0L) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY.toLong())
+			buffer.putInt(MAGIC_OFFSET, MAGIC)
+			buffer.putInt(VERSION_OFFSET, VERSION)
+			buffer.putInt(COUNT_OFFSET, 0)
+			buffer.force()
+		} else {
+			if (channel.size() < HEADER_SIZE || channel.size() > Int.MAX_VALUE) {
+				channel.close()
+				throw IOException("Incorrect container file " + file.name)
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size())
+			recordCount = buffer.getInt(COUNT_OFFSET)
+			if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+					|| recordCount < 0 || HEADER_SIZE + recordCount.toLong() * RECORD_SIZE > channel.size()) {
+				channel.close()
+				throw IOException("Incorrect container file " + file.name)
+			}
+			val address = ByteArray(ADDRESS_SIZE)
+			var replaced = false
+			for (record in 0 until recordCount) {
+				val offset = HEADER_SIZE + record * RECORD_SIZE
+				if (buffer.get(offset + STATUS_OFFSET) == STATUS_ACTIVE) {
+					readBytes(offset + ADDRESS_OFFSET, address)
+					// store was interrupted before the previous record was marked as deleted
+					val previous = offsets.put(toHex(address), offset)
+					if (previous != null) {
+						buffer.put(previous + STATUS_OFFSET, STATUS_DELETED)
+						replaced = true
+					}
+				}
+			}
+			if (replaced) {
+				buffer.force()
+			}
+		}
+	}
+
+	@Synchronized
+	@Throws(IOException::class)
+	override fun load(accountAddress: String): WalletFile? {
+		val offset = offsets[KeyStoreIndex.normalizeAddress(accountAddress)] ?: return null
+		return readRecord(offset)
+	}
+
+	@Synchronized
+	@Throws(IOException::class)
+	override fun store(walletFile: WalletFile, fileName: String?): File? {
+		val address = KeyStoreIndex.normalizeAddress(walletFile.address ?: throw IOException("Wallet file has no address"))
+		val record = encodeRecord(address, walletFile)
+		val offset = HEADER_SIZE + recordCount * RECORD_SIZE
+		ensureCapacity(offset + RECORD_SIZE)
+		writeBytes(offset, record)
+		buffer.force()
+		recordCount++
+		buffer.putInt(COUNT_OFFSET, recordCount)
+		buffer.force()
+		val previous = offsets.put(address, offset)
+		if (previous != null) {
+			buffer.put(previous + STATUS_OFFSET, STATUS_DELETED)
+			buffer.force()
+		}
+		return null
+	}
+
+	@Synchronized
+	override fun delete(accountAddress: String): Boolean {
+		val offset = offsets.remove(KeyStoreIndex.normalizeAddress(accountAddress)) ?: return false
+		buffer.put(offset + STATUS_OFFSET, STATUS_DELETED)
+		buffer.force()
+		return true
+	}
+
+	@Synchronized
+	override fun contains(accountAddress: String): Boolean {
+		return offsets.containsKey(KeyStoreIndex.normalizeAddress(accountAddress))
+	}
+
+	@Synchronized
+	override fun addresses(): List<String> {
+		return ArrayList(offsets.keys)
+	}
+
+	/**
+	 * Import all json key-files of the folder (including subfolders)
+	 *
+	 * @param dir - source folder
+	 *
+	 * @return results of the imported (or failed) key-files
+	 */
+	fun importFrom(dir: File): List<AccountResult> {
+		val results = ArrayList<AccountResult>()
+		val objectMapper = ObjectMapperFactory.getObjectMapper()
+		for (keyFile in KeyFileReader.listKeyFiles(dir)) {
+			try {
+				val walletFile = objectMapper.readValue(keyFile, WalletFile::class.java)
+				store(walletFile)
+				results.add(AccountResult(walletFile.address, keyFile, null))
+			} catch (e: IOException) {
+				results.add(AccountResult(null, keyFile, e))
+			}
+		}
+		return results
+	}
+
+	/**
+	 * Export all accounts as json key-files (web3j format)
+	 *
+	 * @param dir - destination folder
+	 *
+	 * @return results of the written (or failed) key-files
+	 */
+	@Throws(IOException::class)
+	fun exportTo(dir: File): List<AccountResult> {
+		if (!dir.isDirectory && !dir.mkdirs()) {
+			throw IOException("Can't create folder " + dir.path)
+		}
+		val results = ArrayList<AccountResult>()
+		for (address in addresses()) {
+			val keyFile = File(dir, KeyFileNames.fileNameFor(address))
+			try {
+				val walletFile = load(address) ?: continue
+				KeyFileWriter.writeAtomically(keyFile, walletFile)
+				results.add(AccountResult(address, keyFile, null))
+			} catch (e: IOException) {
+				results.add(AccountResult(address, keyFile, e))
+			}
+		}
+		return results
+	}
+
+	/**
+	 * Rewrite the container without deleted records (to a temp file which replaces the container).
+	 * If it fails, the container is left as is and stays open
+	 */
+	@Synchronized
+	@Throws(IOException::class)
+	fun compact() {
+		val temp = File(file.path + TEMP_FILE_FORMAT)
+		temp.delete()
+		val compacted = ContainerKeyStorage(temp)
+		try {
+			for (offset in offsets.values.sorted()) {
+				val record = ByteArray(RECORD_SIZE)
+				readBytes(offset, record)
+				compacted.appendRecord(record)
+			}
+			compacted.buffer.force()
+		} finally {
+			compacted.close()
+		}
+		// the compacted container is opened before the rename (its channel follows the file),
+		// the current one stays open and in use until the rename succeeds
+		val reopened = try {
+			ContainerKeyStorage(temp)
+		} catch (e: IOException) {
+			temp.delete()
+			throw e
+		}
+		if (!temp.renameTo(file)) {
+			reopened.close()
+			temp.delete()
+			throw IOException("Can't rename " + temp.name + " to " + file.name)
+		}
+		channel.close()
+		channel = reopened.channel
+		buffer = reopened.buffer
+		recordCount = reopened.recordCount
+		offsets.clear()
+		offsets.putAll(reopened.offsets)
+	}
+
+	@Synchronized
+	override fun close() {
+		channel.close()
+	}
+
+	private fun appendRecord(record: ByteArray) {
+		val offset = HEADER_SIZE + recordCount * RECORD_SIZE
+		ensureCapacity(offset + RECORD_SIZE)
+		writeBytes(offset, record)
+		recordCount++
+		buffer.putInt(COUNT_OFFSET, recordCount)
+	}
+
+	private fun ensureCapacity(size: Int) {
+		if (size > buffer.capacity()) {
+			buffer.force()
+			val capacity = Math.max(size.toLong(), buffer.capacity() * 2L)
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity)
+		}
+	}
+
+	private fun readBytes(offset: Int, destination: ByteArray) {
+		val view = buffer.duplicate() as ByteBuffer
+		view.position(offset)
+		view.get(destination)
+	}
+
+	private fun writeBytes(offset: Int, source: ByteArray) {
+		val view = buffer.duplicate() as ByteBuffer
+		view.position(offset)
+		view.put(source)
+	}
+
+	@Throws(IOException::class)
+	private fun encodeRecord(address: String, walletFile: WalletFile): ByteArray {
+		val crypto = walletFile.crypto ?: throw IOException("Wallet file has no crypto section")
+		if (CIPHER != crypto.cipher) {
+			throw IOException("Unsupported cipher " + crypto.cipher)
+		}
+		val record = ByteBuffer.allocate(RECORD_SIZE)
+		record.put(STATUS_ACTIVE)
+		record.put(decodeHex(address, ADDRESS_SIZE))
+		// the common KdfParams base is not public, so dklen and salt are read from the concrete types
+		val params = crypto.kdfparams
+		val dklen: Int
+		val salt: String?
+		when (params) {
+			is WalletFile.ScryptKdfParams -> {
+				record.put(KDF_SCRYPT)
+				record.putInt(params.n)
+				record.putInt(params.r)
+				record.putInt(params.p)
+				dklen = params.dklen
+				salt = params.salt
+			}
+			is WalletFile.Aes128CtrKdfParams -> {
+				if (PRF != params.prf) {
+					throw IOException("Unsupported prf " + params.prf)
+				}
+				record.put(KDF_PBKDF2)
+				record.putInt(params.c)
+				record.putInt(0)
+				record.putInt(0)
+				dklen = params.dklen
+				salt = params.salt
+			}
+			else -> throw IOException("Unsupported kdf " + crypto.kdf)
+		}
+		record.putInt(dklen)
+		record.put(decodeHex(salt, SALT_SIZE))
+		record.put(decodeHex(crypto.cipherparams?.iv, IV_SIZE))
+		record.put(decodeHex(crypto.ciphertext, CIPHERTEXT_SIZE))
+		record.put(decodeHex(crypto.mac, MAC_SIZE))
+		val id = try {
+			UUID.fromString(walletFile.id)
+		} catch (e: RuntimeException) {
+			UUID(0, 0)
+		}
+		record.putLong(id.mostSignificantBits)
+		record.putLong(id.leastSignificantBits)
+		return record.array()
+	}
+
+	private fun readRecord(offset: Int): WalletFile {
+		val record = buffer.duplicate() as ByteBuffer
+		record.position(offset + ADDRESS_OFFSET)
+		val walletFile = WalletFile()
+		walletFile.address = readHex(record, ADDRESS_SIZE)
+		val kdf = record.get()
+		val n = record.int
+		val r = record.int
+		val p = record.int
+		val dklen = record.int
+		val salt = readHex(record, SALT_SIZE)
+		val crypto = WalletFile.Crypto()
+		if (kdf == KDF_SCRYPT) {
+			val params = WalletFile.ScryptKdfParams()
+			params.n = n
+			params.r = r
+			params.p = p
+			params.dklen = dklen
+			params.salt = salt
+			crypto.kdf = SCRYPT
+			WalletFileCrypto.setKdfParams(crypto, params)
+		} else {
+			val params = WalletFile.Aes128CtrKdfParams()
+			params.c = n
+			params.dklen = dklen
+			params.prf = PRF
+			params.salt = salt
+			crypto.kdf = PBKDF2
+			WalletFileCrypto.setKdfParams(crypto, params)
+		}
+		val cipherParams = WalletFile.CipherParams()
+		cipherParams.iv = readHex(record, IV_SIZE)
+		crypto.cipher = CIPHER
+		crypto.cipherparams = cipherParams
+		crypto.ciphertext = readHex(record, CIPHERTEXT_SIZE)
+		crypto.mac = readHex(record, MAC_SIZE)
+		walletFile.crypto = crypto
+		walletFile.id = UUID(record.long, record.long).toString()
+		walletFile.version = WALLET_VERSION
+		return walletFile
+	}
+
+	@Throws(IOException::class)
+	private fun decodeHex(hex: String?, size: Int): ByteArray {
+		val bytes = if (hex == null) null else Numeric.hexStringToByteArray(hex)
+		if (bytes == null || bytes.size != size) {
+			throw IOException("Unsupported key-file field size")
+		}
+		return bytes
+	}
+
+	private fun readHex(record: ByteBuffer, size: Int): String {
+		val bytes = ByteArray(size)
+		record.get(bytes)
+		return toHex(bytes)
+	}
+
+	companion object {
+		private const val MAGIC = 0x454B5343
+		private const val VERSION = 1
+		private const val WALLET_VERSION = 3
+
+		private const val MAGIC_OFFSET = 0
+		private const val VERSION_OFFSET = 4
+		private const val COUNT_OFFSET = 8
+		private const val HEADER_SIZE = 12
+
+		private const val ADDRESS_SIZE = 20
+		private const val SALT_SIZE = 32
+		private const val IV_SIZE = 16
+		private const val CIPHERTEXT_SIZE = 32
+		private const val MAC_SIZE = 32
+		private const val ID_SIZE = 16
+
+		private const val STATUS_OFFSET = 0
+		private const val ADDRESS_OFFSET = 1
+		// status, address, kdf type, n (or c), r, p, dklen, salt, iv, ciphertext, mac, id
+		private const val RECORD_SIZE = 1 + ADDRESS_SIZE + 1 + 4 * 4 + SALT_SIZE + IV_SIZE + CIPHERTEXT_SIZE + MAC_SIZE + ID_SIZE
+
+		private const val STATUS_ACTIVE: Byte = 1
+		private const val STATUS_DELETED: Byte = 0
+		private const val KDF_SCRYPT: Byte = 0
+		private const val KDF_PBKDF2: Byte = 1
+
+		private const val CIPHER = "aes-128-ctr"
+		private const val SCRYPT = "scrypt"
+		private const val PBKDF2 = "pbkdf2"
+		private const val PRF = "hmac-sha256"
+
+		private const val INITIAL_CAPACITY = HEADER_SIZE + 1024 * RECORD_SIZE
+		private const val TEMP_FILE_FORMAT = ".tmp"
+
+		private val HEX_DIGITS = "0123456789abcdef".toCharArray()
+
+		private fun toHex(bytes: ByteArray): String {
+			val chars = CharArray(bytes.size * 2)
+			for (i in bytes.indices) {
+				val value = bytes[i].toInt() and 0xff
+				chars[i * 2] = HEX_DIGITS[value ushr 4]
+				chars[i * 2 + 1] = HEX_DIGITS[value and 0x0f]
+			}
+			return String(chars)
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package biz.cactussoft.ethcore.keystore
+
+import org.web3j.crypto.Credentials
+import org.web3j.crypto.ECKeyPair
+import org.web3j.utils.Numeric
+import java.math.BigInteger
+import java.util.*
+
+/**
+ * Cache of unlocked (decrypted) accounts, so signing doesn't need the key derivation
+ * of the key-file every time.
+ *
+ * An account is unlocked for a duration and optionally for a limited number of signatures.
+ * The private key is kept as a byte array which is wiped when the account is locked, expired
+ * or evicted (the least recently used account is evicted when the cache is full).
+ * Note: a [Credentials] object returned by [acquire] holds its own copy of the key
+ * (immutable BigInteger) which can't be wiped, so it should not be stored by the caller.
+ *
+ * @param maxSize - maximum number of unlocked accounts
+ */
+class CredentialsCache(private val maxSize: Int = DEFAULT_MAX_SIZE) {
+
+	private class UnlockedAccount(val privateKey: ByteArray,
+						val publicKey: BigInteger,
+						val expirationTime: Long,
+						var signaturesLeft: Int) {
+
+		fun wipe() {
+			Arrays.fill(privateKey, 0.toByte())
+		}
+	}
+
+	private val entries = object : LinkedHashMap<String, UnlockedAccount>(16, 0.75f, true) {
+		override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, UnlockedAccount>): Boolean {
+			if (size > maxSize) {
+				eldest.value.wipe()
+				return true
+			}
+			return false
+		}
+	}
+
+	/**
+	 * Unlock the account
+	 *
+	 * @param accountAddress - hex address of the account
+	 * @param credentials    - decrypted credentials of the account
+	 * @param durationMillis - unlock duration (milliseconds)
+	 * @param signatures     - number of allowed signatures (unlimited by default)
+	 */
+	@Synchronized
+	fun unlock(accountAddress: String,
+			   credentials: Credentials,
+			   durationMillis: Long,
+			   signatures: Int = UNLIMITED_SIGNATURES) {
+		removeExpired()
+		val keyPair = credentials.ecKeyPair
+		val entry = UnlockedAccount(Numeric.toBytesPadded(keyPair.privateKey, PRIVATE_KEY_SIZE),
+				keyPair.publicKey,
+				System.currentTimeMillis() + durationMillis,
+				signatures)
+		entries.put(KeyStoreIndex.normalizeAddress(accountAddress), entry)?.wipe()
+	}
+
+	/**
+	 * Get credentials of the unlocked account for one signature
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return credentials or null if the account is not unlocked
+	 */
+	@Synchronized
+	fun acquire(accountAddress: String): Credentials? {
+		val address = KeyStoreIndex.normalizeAddress(accountAddress)
+		val entry = entries[address] ?: return null
+		if (entry.expirationTime <= System.currentTimeMillis()) {
+			lock(address)
+			return null
+		}
+		val keyPair = ECKeyPair(BigInteger(1, entry.privateKey), entry.publicKey)
+		if (entry.signaturesLeft != UNLIMITED_SIGNATURES && --entry.signaturesLeft <= 0) {
+			lock(address)
+		}
+		return Credentials.create(keyPair)
+	}
+
+	/**
+	 * Check is account unlocked
+	 *
+	 * @param accountAddress - hex address of the account
+	 */
+	@Synchronized
+	fun isUnlocked(accountAddress: String): Boolean {
+		removeExpired()
+		return entries.containsKey(KeyStoreIndex.normalizeAddress(accountAddress))
+	}
+
+	/**
+	 * Lock the account and wipe its key
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return true if the account was unlocked
+	 */
+	@Synchronized
+	fun lock(accountAddress: String): Boolean {
+		val entry = entries.remove(KeyStoreIndex.normalizeAddress(accountAddress)) ?: return false
+		entry.wipe()
+		return true
+	}
+
+	/**
+	 * Lock all accounts and wipe their keys
+	 */
+	@Synchronized
+	fun lockAll() {
+		for (entry in entries.values) {
+			entry.wipe()
+		}
+		entries.clear()
+	}
+
+	private fun removeExpired() {
+		val now = System.currentTimeMillis()
+		val iterator = entries.values.iterator()
+		while (iterator.hasNext()) {
+			val entry = iterator.next()
+			if (entry.expirationTime <= now) {
+				entry.wipe()
+				iterator.remove()
+			}
+		}
+	}
+
+	companion object {
+		const val UNLIMITED_SIGNATURES = -1
+
+		private const val DEFAULT_MAX_SIZE = 16
+		private const val PRIVATE_KEY_SIZE = 32
+	}
+}
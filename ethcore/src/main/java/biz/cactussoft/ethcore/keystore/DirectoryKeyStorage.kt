@@ -0,0 +1,172 @@
+package biz.cactussoft.ethcore.keystore
+
+import biz.cactussoft.ethcore.models.AccountResult
+import org.web3j.crypto.WalletFile
+import org.web3j.protocol.ObjectMapperFactory
+import java.io.File
+import java.io.IOException
+import java.util.*
+
+/**
+ * Key-files stored as json files in the keystore folder (web3j format).
+ * Every request lists the folder of the account (see [KeyStoreLayout]), nothing is cached,
+ * so the folder can be changed by other processes. [IndexedKeyStorage] keeps an index instead.
+ *
+ * @param keyStoreDir    - keystore folder
+ * @param layout         - layout of the keystore folder
+ * @param trustFileNames - take addresses from the key-file names when possible
+ *                        (a key-file is still checked against its json before it is loaded or replaced)
+ */
+open class DirectoryKeyStorage(keyStoreDir: File,
+							   val layout: KeyStoreLayout = KeyStoreLayout.FLAT,
+							   protected val trustFileNames: Boolean = true) : KeyStorage {
+
+	val keyStoreDir: File = keyStoreDir.absoluteFile
+
+	/**
+	 * Tries to find the key-file by the address
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return key-file if it is found (otherwise null)
+	 */
+	open fun find(accountAddress: String): File? {
+		val address = KeyStoreIndex.normalizeAddress(accountAddress)
+		val folder = layout.folderFor(keyStoreDir, address) ?: return null
+		for (keyFile in KeyFileReader.listKeyFiles(folder)) {
+			if (KeyFileReader.resolveAddress(keyFile, trustFileNames) == address) {
+				return keyFile
+			}
+		}
+		return null
+	}
+
+	@Throws(IOException::class)
+	override fun load(accountAddress: String): WalletFile? {
+		val address = KeyStoreIndex.normalizeAddress(accountAddress)
+		val keyFile = find(address) ?: return null
+		val walletFile = readWalletFile(keyFile)
+		if (holds(walletFile, address)) {
+			return walletFile
+		}
+		val actual = relocate(address, keyFile) ?: return null
+		val actualWalletFile = readWalletFile(actual)
+		return if (holds(actualWalletFile, address)) actualWalletFile else null
+	}
+
+	@Throws(IOException::class)
+	override fun store(walletFile: WalletFile, fileName: String?): File? {
+		val address = KeyStoreIndex.normalizeAddress(walletFile.address ?: throw IOException("Wallet file has no address"))
+		var destination = locate(address)
+		if (destination == null) {
+			val folder = layout.folderFor(keyStoreDir, address) ?: throw IOException("Incorrect address " + walletFile.address)
+			if (!folder.isDirectory && !folder.mkdirs()) {
+				throw IOException("Can't create folder " + folder.path)
+			}
+			destination = File(folder, fileName ?: KeyFileNames.fileNameFor(address))
+			if (destination.exists()) {
+				throw IOException("File " + destination.name + " already exists")
+			}
+		}
+		KeyFileWriter.writeAtomically(destination, walletFile)
+		onStored(address, destination)
+		return destination
+	}
+
+	override fun delete(accountAddress: String): Boolean {
+		val keyFile = locate(KeyStoreIndex.normalizeAddress(accountAddress))
+		if (keyFile != null && keyFile.delete()) {
+			onDeleted(accountAddress)
+			return true
+		}
+		return false
+	}
+
+	override fun contains(accountAddress: String): Boolean {
+		return find(accountAddress) != null
+	}
+
+	override fun addresses(): List<String> {
+		val addresses = LinkedHashSet<String>()
+		for (keyFile in KeyFileReader.listKeyFiles(keyStoreDir)) {
+			KeyFileReader.resolveAddress(keyFile, trustFileNames)?.let { addresses.add(it) }
+		}
+		return ArrayList(addresses)
+	}
+
+	/**
+	 * Move existing key-files into the folders defined by the layout
+	 * (e.g. reshard a flat keystore folder in place)
+	 *
+	 * @return results of the moved (or failed) key-files
+	 */
+	fun migrate(): List<AccountResult> {
+		return KeyStoreResharder(keyStoreDir, layout, trustFileNames).reshard()
+	}
+
+	/**
+	 * Key-file of the account checked against the address of its json
+	 * (a trusted file name can name another account than the json holds)
+	 */
+	private fun locate(address: String): File? {
+		val keyFile = find(address) ?: return null
+		if (!trustFileNames || KeyFileReader.resolveAddress(keyFile, false) == address) {
+			return keyFile
+		}
+		return relocate(address, keyFile)
+	}
+
+	/**
+	 * Look the account up by the json addresses of the key-files in its folder,
+	 * after the key-file found by the name turned out to hold another account
+	 *
+	 * @param address  - normalized address of the account
+	 * @param misnamed - key-file found for the account by the name
+	 *
+	 * @return key-file of the account or null if there is none
+	 */
+	private fun relocate(address: String, misnamed: File): File? {
+		var keyFile: File? = null
+		val folder = layout.folderFor(keyStoreDir, address)
+		if (folder != null) {
+			for (candidate in KeyFileReader.listKeyFiles(folder)) {
+				if (candidate != misnamed && KeyFileReader.resolveAddress(candidate, false) == address) {
+					keyFile = candidate
+					break
+				}
+			}
+		}
+		onRelocated(address, keyFile)
+		return keyFile
+	}
+
+	@Throws(IOException::class)
+	private fun readWalletFile(keyFile: File): WalletFile {
+		return ObjectMapperFactory.getObjectMapper().readValue(keyFile, WalletFile::class.java)
+	}
+
+	private fun holds(walletFile: WalletFile, address: String): Boolean {
+		return walletFile.address?.let { KeyStoreIndex.normalizeAddress(it) } == address
+	}
+
+	/**
+	 * Called after the key-file was written
+	 */
+	protected open fun onStored(accountAddress: String, keyFile: File) {
+	}
+
+	/**
+	 * Called after the key-file was deleted
+	 */
+	protected open fun onDeleted(accountAddress: String) {
+	}
+
+	/**
+	 * Called when the key-file found for the account held another account
+	 *
+	 * @param accountAddress - normalized address of the account
+	 * @param keyFile        - key-file which holds the account (null if there is none)
+	 */
+	protected open fun onRelocated(accountAddress: String, keyFile: File?) {
+	}
+}
@@ -0,0 +1,43 @@
+package biz.cactussoft.ethcore.keystore
+
+import org.web3j.crypto.WalletFile
+import java.io.File
+import java.io.IOException
+import java.util.*
+
+/**
+ * Wallet files kept in memory only (nothing is written to the disk),
+ * e.g. for temporary accounts or tests
+ */
+class InMemoryKeyStorage : KeyStorage {
+
+	private val walletFiles = LinkedHashMap<String, WalletFile>()
+
+	@Synchronized
+	override fun load(accountAddress: String): WalletFile? {
+		return walletFiles[KeyStoreIndex.normalizeAddress(accountAddress)]
+	}
+
+	@Synchronized
+	@Throws(IOException::class)
+	override fun store(walletFile: WalletFile, fileName: String?): File? {
+		val address = walletFile.address ?: throw IOException("Wallet file has no address")
+		walletFiles[KeyStoreIndex.normalizeAddress(address)] = walletFile
+		return null
+	}
+
+	@Synchronized
+	override fun delete(accountAddress: String): Boolean {
+		return walletFiles.remove(KeyStoreIndex.normalizeAddress(accountAddress)) != null
+	}
+
+	@Synchronized
+	override fun contains(accountAddress: String): Boolean {
+		return walletFiles.containsKey(KeyStoreIndex.normalizeAddress(accountAddress))
+	}
+
+	@Synchronized
+	override fun addresses(): List<String> {
+		return ArrayList(walletFiles.keys)
+	}
+}
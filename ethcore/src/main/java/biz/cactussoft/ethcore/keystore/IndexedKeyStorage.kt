@@ -0,0 +1,44 @@
+package biz.cactussoft.ethcore.keystore
+
+import java.io.File
+import java.util.concurrent.ExecutorService
+
+/**
+ * Key-files stored in the keystore folder and found by the persisted [KeyStoreIndex]
+ * (only the folders modified since the last request are listed again)
+ *
+ * @param keyStoreDir    - keystore folder
+ * @param layout         - layout of the keystore folder
+ * @param trustFileNames - take addresses from the key-file names when possible
+ * @param scanExecutor   - optional pool for the parallel initial scan
+ */
+class IndexedKeyStorage(keyStoreDir: File,
+						layout: KeyStoreLayout = KeyStoreLayout.FLAT,
+						trustFileNames: Boolean = true,
+						scanExecutor: ExecutorService? = null) : DirectoryKeyStorage(keyStoreDir, layout, trustFileNames) {
+
+	private val index = KeyStoreIndex(this.keyStoreDir, trustFileNames, scanExecutor, layout)
+
+	override fun find(accountAddress: String): File? {
+		return index.find(accountAddress)
+	}
+
+	override fun addresses(): List<String> {
+		return index.addresses()
+	}
+
+	override fun onStored(accountAddress: String, keyFile: File) {
+		index.put(accountAddress, keyFile)
+	}
+
+	override fun onDeleted(accountAddress: String) {
+		index.remove(accountAddress)
+	}
+
+	override fun onRelocated(accountAddress: String, keyFile: File?) {
+		index.remove(accountAddress)
+		if (keyFile != null) {
+			index.put(accountAddress, keyFile)
+		}
+	}
+}
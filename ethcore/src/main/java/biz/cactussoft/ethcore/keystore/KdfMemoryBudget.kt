@@ -0,0 +1,73 @@
+package biz.cactussoft.ethcore.keystore
+
+import com.lambdaworks.crypto.SCrypt
+import org.web3j.crypto.WalletFile
+import java.util.concurrent.Semaphore
+
+/**
+ * Memory budget for concurrent key derivations (scrypt needs 128 * r * (N + p) bytes,
+ * more with the native AVX2 variant, see [SCrypt.memoryCost]).
+ * A derivation waits until its memory fits into the budget, a derivation which is larger
+ * than the whole budget waits for the whole budget (runs alone).
+ *
+ * @param budgetBytes - memory available for key derivations (bytes)
+ */
+class KdfMemoryBudget(budgetBytes: Long) {
+
+	private val budgetKBytes = Math.max(1L, Math.min(budgetBytes / KBYTE, Int.MAX_VALUE.toLong())).toInt()
+	private val semaphore = Semaphore(budgetKBytes, true)
+
+	/**
+	 * Wait until the memory is available and take it
+	 *
+	 * @param costBytes - memory of the derivation (bytes)
+	 *
+	 * @return taken amount, should be passed to [release]
+	 */
+	@Throws(InterruptedException::class)
+	fun acquire(costBytes: Long): Int {
+		val permits = Math.max(1L, Math.min((costBytes + KBYTE - 1) / KBYTE, budgetKBytes.toLong())).toInt()
+		semaphore.acquire(permits)
+		return permits
+	}
+
+	/**
+	 * Return the memory taken by [acquire]
+	 */
+	fun release(permits: Int) {
+		semaphore.release(permits)
+	}
+
+	companion object {
+		private const val KBYTE = 1024L
+
+		private const val PBKDF2_COST = 64 * KBYTE
+
+		// Wallet.createLight parameters
+		private const val LIGHT_N = 1 shl 12
+		private const val LIGHT_P = 6
+		private const val SCRYPT_R = 8
+
+		/**
+		 * Memory needed to decrypt the key-file
+		 */
+		fun decryptionCost(walletFile: WalletFile): Long {
+			val params = walletFile.crypto?.kdfparams
+			return if (params is WalletFile.ScryptKdfParams) scryptCost(params.n, params.r, params.p) else PBKDF2_COST
+		}
+
+		/**
+		 * Memory needed to encrypt a light key-file ([org.web3j.crypto.Wallet.createLight])
+		 */
+		fun lightEncryptionCost(): Long {
+			return scryptCost(LIGHT_N, SCRYPT_R, LIGHT_P)
+		}
+
+		/**
+		 * Memory of a scrypt derivation with the loaded implementation
+		 */
+		fun scryptCost(n: Int, r: Int, p: Int): Long {
+			return SCrypt.memoryCost(n, r, p)
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package biz.cactussoft.ethcore.keystore
+
+import com.lambdaworks.crypto.PBKDF
+import org.web3j.crypto.CipherException
+import org.web3j.crypto.ECKeyPair
+import org.web3j.crypto.Hash
+import org.web3j.crypto.Wallet
+import org.web3j.crypto.WalletFile
+import org.web3j.utils.Numeric
+import java.security.GeneralSecurityException
+import java.util.Arrays
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Decryption of the key-files, same results and errors as [Wallet.decrypt].
+ * The key of a pbkdf2 key-file is derived by [PBKDF.pbkdf2HmacSHA256] (HMAC states hashed once,
+ * no JCE calls per iteration) instead of the generic generator of web3j;
+ * scrypt key-files are passed to [Wallet.decrypt], which already uses the scrypt module.
+ */
+object KeyFileDecryptor {
+	private const val CURRENT_VERSION = 3
+	private const val CIPHER = "aes-128-ctr"
+	private const val PBKDF2 = "pbkdf2"
+	private const val PRF = "hmac-sha256"
+	private const val DKLEN = 32
+
+	/**
+	 * Decrypt the key pair of the key-file
+	 *
+	 * @param password - password of the key-file
+	 * @param walletFile - key-file
+	 *
+	 * @return key pair
+	 */
+	@Throws(CipherException::class)
+	fun decrypt(password: String, walletFile: WalletFile): ECKeyPair {
+		val crypto = walletFile.crypto
+		val params = crypto?.kdfparams
+		if (crypto == null || walletFile.version != CURRENT_VERSION || crypto.cipher != CIPHER
+				|| crypto.kdf != PBKDF2 || params !is WalletFile.Aes128CtrKdfParams) {
+			// scrypt key-files and the validation errors
+			return Wallet.decrypt(password, walletFile)
+		}
+		if (params.prf != PRF) {
+			throw CipherException("Unsupported prf:" + params.prf)
+		}
+
+		val mac = Numeric.hexStringToByteArray(crypto.mac)
+		val iv = Numeric.hexStringToByteArray(crypto.cipherparams.iv)
+		val cipherText = Numeric.hexStringToByteArray(crypto.ciphertext)
+		val salt = Numeric.hexStringToByteArray(params.salt)
+
+		val derivedKey = try {
+			PBKDF.pbkdf2HmacSHA256(password.toByteArray(Charsets.UTF_8), salt, params.c, DKLEN)
+		} catch (e: GeneralSecurityException) {
+			throw CipherException(e)
+		}
+
+		try {
+			val derivedMac = Hash.sha3(Arrays.copyOfRange(derivedKey, 16, 32) + cipherText)
+			if (!Arrays.equals(derivedMac, mac)) {
+				throw CipherException("Invalid password provided")
+			}
+
+			val cipher = Cipher.getInstance("AES/CTR/NoPadding")
+			cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(Arrays.copyOf(derivedKey, 16), "AES"), IvParameterSpec(iv))
+			return ECKeyPair.create(cipher.doFinal(cipherText))
+		} catch (e: GeneralSecurityException) {
+			throw CipherException(e)
+		} finally {
+			Arrays.fill(derivedKey, 0)
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package biz.cactussoft.ethcore.keystore
+
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.regex.Pattern
+
+/**
+ * Key-file naming convention used by web3j and geth: UTC--<iso time>--<address>.json
+ */
+object KeyFileNames {
+	private const val KEY_FILE_NAME_REGEX = "^UTC--.+--([0-9a-fA-F]{40})\\.json$"
+	private val KEY_FILE_NAME_PATTERN = Pattern.compile(KEY_FILE_NAME_REGEX)
+
+	private const val TIME_FORMAT = "yyyy-MM-dd'T'HH-mm-ss.SSS'Z'"
+	private const val TIME_ZONE = "UTC"
+
+	/**
+	 * Generate the key-file name for the account (current time)
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return file name UTC--<iso time>--<address>.json
+	 */
+	fun fileNameFor(accountAddress: String): String {
+		val format = SimpleDateFormat(TIME_FORMAT, Locale.US)
+		format.timeZone = TimeZone.getTimeZone(TIME_ZONE)
+		return "UTC--" + format.format(Date()) + "--" + KeyStoreIndex.normalizeAddress(accountAddress) + KeyStoreIndex.KEY_FILE_FORMAT
+	}
+
+	/**
+	 * Extract the account address encoded in the key-file name
+	 *
+	 * @param fileName - key-file name
+	 *
+	 * @return hex address (lower case, without prefix) or null if the name doesn't follow the convention
+	 */
+	fun addressFromName(fileName: String): String? {
+		val matcher = KEY_FILE_NAME_PATTERN.matcher(fileName)
+		return if (matcher.matches()) matcher.group(1).toLowerCase() else null
+	}
+}
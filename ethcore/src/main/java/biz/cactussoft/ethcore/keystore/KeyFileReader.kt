@@ -0,0 +1,96 @@
+package biz.cactussoft.ethcore.keystore
+
+import android.util.Log
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonToken
+import java.io.File
+import java.io.IOException
+
+/**
+ * Streaming reader of the key-file fields.
+ * Uses one shared parser factory and doesn't build the json tree.
+ */
+object KeyFileReader {
+	private const val ACCOUNT_FIELD_NAME = "address"
+
+	private val JSON_FACTORY = JsonFactory()
+
+	private val TAG = KeyFileReader::class.java.simpleName
+
+	/**
+	 * Provides a list of all json files in the folder (including subfolders)
+	 *
+	 * @param folder - folder
+	 *
+	 * @return list of json files
+	 */
+	fun listKeyFiles(folder: File): List<File> {
+		val keyFiles = ArrayList<File>()
+		collectKeyFiles(folder, keyFiles)
+		return keyFiles
+	}
+
+	private fun collectKeyFiles(folder: File, keyFiles: MutableList<File>) {
+		val files = folder.listFiles() ?: return
+		for (file in files) {
+			if (file.isDirectory) {
+				collectKeyFiles(file, keyFiles)
+			} else if (file.name.endsWith(KeyStoreIndex.KEY_FILE_FORMAT)) {
+				keyFiles.add(file)
+			}
+		}
+	}
+
+	/**
+	 * Resolve the account address of the key-file: from the file name (if allowed
+	 * and the name follows the convention, see [KeyFileNames]) or from the json
+	 *
+	 * @param keyFile       - key-file
+	 * @param trustFileName - take the address from the file name when possible
+	 *
+	 * @return hex address (lower case, without prefix) or null if it is not a key-file
+	 */
+	fun resolveAddress(keyFile: File, trustFileName: Boolean): String? {
+		if (trustFileName) {
+			val address = KeyFileNames.addressFromName(keyFile.name)
+			if (address != null) {
+				return address
+			}
+		}
+		try {
+			val address = readAddress(keyFile)
+			if (address != null) {
+				return KeyStoreIndex.normalizeAddress(address)
+			}
+		} catch (e: IOException) {
+			Log.e(TAG, "Incorrect file " + keyFile.name)
+		}
+		return null
+	}
+
+	/**
+	 * Read the top-level address field of the key-file.
+	 * Parsing stops as soon as the field is found.
+	 *
+	 * @param keyFile - key-file
+	 *
+	 * @return hex address or null if the file has no address field
+	 */
+	@Throws(IOException::class)
+	fun readAddress(keyFile: File): String? {
+		JSON_FACTORY.createParser(keyFile).use { parser ->
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return null
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				val fieldName = parser.currentName
+				val token = parser.nextToken()
+				if (fieldName == ACCOUNT_FIELD_NAME && token == JsonToken.VALUE_STRING) {
+					return parser.text
+				}
+				parser.skipChildren()
+			}
+		}
+		return null
+	}
+}
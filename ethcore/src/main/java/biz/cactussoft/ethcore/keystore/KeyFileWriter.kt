@@ -0,0 +1,33 @@
+package biz.cactussoft.ethcore.keystore
+
+import org.web3j.crypto.WalletFile
+import org.web3j.protocol.ObjectMapperFactory
+import java.io.File
+import java.io.IOException
+
+/**
+ * Writer of key-files
+ */
+object KeyFileWriter {
+	private const val TEMP_FILE_FORMAT = ".tmp"
+
+	/**
+	 * Write the key-file to a temp file in the same folder and rename it,
+	 * so the destination is never left half-written
+	 *
+	 * @param destination - key-file
+	 * @param walletFile  - key-file content
+	 */
+	@Throws(IOException::class)
+	fun writeAtomically(destination: File, walletFile: WalletFile) {
+		val temp = File(destination.absoluteFile.parentFile, destination.name + TEMP_FILE_FORMAT)
+		try {
+			ObjectMapperFactory.getObjectMapper().writeValue(temp, walletFile)
+			if (!temp.renameTo(destination)) {
+				throw IOException("Can't rename " + temp.name + " to " + destination.name)
+			}
+		} finally {
+			temp.delete()
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package biz.cactussoft.ethcore.keystore
+
+import org.web3j.crypto.WalletFile
+import java.io.File
+import java.io.IOException
+
+/**
+ * Storage of the account key-files (web3j wallet files)
+ */
+interface KeyStorage {
+
+	/**
+	 * Load the wallet file of the account
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return wallet file or null if the account is not found
+	 */
+	@Throws(IOException::class)
+	fun load(accountAddress: String): WalletFile?
+
+	/**
+	 * Save the wallet file, the wallet file of the same account is replaced
+	 *
+	 * @param walletFile - wallet file (should contain the address)
+	 * @param fileName   - preferred file name (used by file based storages)
+	 *
+	 * @return key-file (null if the storage is not file based)
+	 */
+	@Throws(IOException::class)
+	fun store(walletFile: WalletFile, fileName: String? = null): File?
+
+	/**
+	 * Delete the wallet file of the account
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return true if deleting success
+	 */
+	fun delete(accountAddress: String): Boolean
+
+	/**
+	 * Check is account stored
+	 *
+	 * @param accountAddress - hex address of the account
+	 */
+	fun contains(accountAddress: String): Boolean
+
+	/**
+	 * Provides addresses of all stored accounts
+	 *
+	 * @return list of addresses (lower case, without prefix)
+	 */
+	fun addresses(): List<String>
+}
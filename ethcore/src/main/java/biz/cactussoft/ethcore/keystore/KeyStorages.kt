@@ -0,0 +1,61 @@
+package biz.cactussoft.ethcore.keystore
+
+import java.io.File
+import java.util.*
+import java.util.concurrent.ExecutorService
+
+/**
+ * Shared key storages of the keystore folders.
+ * Managers created for the same folder (e.g. EthManager and ERC223ContractManager) get the same
+ * storage instance, so the folder is scanned (indexed) only once per process.
+ */
+object KeyStorages {
+
+	private val storages = HashMap<String, DirectoryKeyStorage>()
+
+	/**
+	 * Provides the storage of the keystore folder (created by the first request)
+	 *
+	 * @param keyStoreDir  - keystore folder
+	 * @param layout       - layout of the keystore folder
+	 * @param indexed      - use [IndexedKeyStorage] (otherwise [DirectoryKeyStorage])
+	 * @param scanExecutor - optional pool for the parallel initial scan (used only by the first request)
+	 *
+	 * @return shared storage of the folder
+	 */
+	@Synchronized
+	fun forPath(keyStoreDir: File,
+				layout: KeyStoreLayout = KeyStoreLayout.FLAT,
+				indexed: Boolean = true,
+				scanExecutor: ExecutorService? = null): DirectoryKeyStorage {
+		val key = keyStoreDir.absoluteFile.normalize().path + if (indexed) INDEXED_SUFFIX else ""
+		val storage = storages[key]
+		if (storage != null) {
+			if (storage.layout != layout) {
+				throw IllegalArgumentException("Keystore folder " + keyStoreDir.path + " is already opened with the " + storage.layout + " layout")
+			}
+			return storage
+		}
+		val newStorage = if (indexed) {
+			IndexedKeyStorage(keyStoreDir, layout, scanExecutor = scanExecutor)
+		} else {
+			DirectoryKeyStorage(keyStoreDir, layout)
+		}
+		storages[key] = newStorage
+		return newStorage
+	}
+
+	/**
+	 * Forget the shared storage of the folder (e.g. after the folder was replaced)
+	 *
+	 * @param keyStoreDir - keystore folder
+	 */
+	@Synchronized
+	fun release(keyStoreDir: File) {
+		val path = keyStoreDir.absoluteFile.normalize().path
+		storages.remove(path)
+		storages.remove(path + INDEXED_SUFFIX)
+	}
+
+	private const val INDEXED_SUFFIX = "#indexed"
+}
@@ -0,0 +1,472 @@
+package biz.cactussoft.ethcore.keystore
+
+import android.util.Log
+import java.io.*
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+
+/**
+ * Index of the keystore folder (account address -> key-file).
+ *
+ * The index is built once by a full scan of the keystore folder and persisted next to it
+ * (<keystore folder>.idx), so it survives restarts. Every request revalidates the index
+ * against the modification times of the indexed folders: only the folders which were changed
+ * since the last scan are listed again and only the new key-files are parsed.
+ *
+ * In the file name mode the address is taken from the name of the key-file
+ * (UTC--<iso time>--<address>.json, see [KeyFileNames]), so the json is read only
+ * for the files which don't follow the naming convention. The json is read by the
+ * streaming [KeyFileReader].
+ *
+ * When a pool is given, the initial (cold) scan is done in parallel by [KeyStoreScanner].
+ *
+ * In the sharded layout a lookup revalidates only the folders on the way to the shard
+ * of the account instead of all folders.
+ *
+ * Single updates ([put], [remove]) are appended to the index file as journal records instead of
+ * rewriting it; the file is compacted (rewritten) when the journal grows over the size of the index.
+ *
+ * @param keyStoreDir    - keystore folder
+ * @param trustFileNames - file name mode (enabled by default)
+ * @param scanExecutor   - optional pool for the parallel initial scan
+ * @param layout         - layout of the keystore folder
+ */
+class KeyStoreIndex(keyStoreDir: File,
+					private val trustFileNames: Boolean = true,
+					private val scanExecutor: ExecutorService? = null,
+					private val layout: KeyStoreLayout = KeyStoreLayout.FLAT) {
+
+	private val root = keyStoreDir.absoluteFile
+	private val indexFile = File(root.parentFile, root.name + INDEX_FILE_FORMAT)
+
+	private val keyFiles = HashMap<String, File>()
+	private val addresses = HashMap<String, String>()
+	private val folders = HashMap<String, Long>()
+	private val folderKeyFiles = HashMap<String, MutableSet<String>>()
+
+	private var loaded = false
+	private var changed = false
+	private var journalRecords = 0
+
+	/**
+	 * Tries to find the key-file by the address
+	 *
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return key-file if it is found (otherwise null)
+	 */
+	@Synchronized
+	fun find(accountAddress: String): File? {
+		val address = normalizeAddress(accountAddress)
+		if (!isAddress(address)) {
+			return null
+		}
+		if (layout == KeyStoreLayout.FLAT) {
+			revalidate()
+		} else {
+			load()
+			for (folder in layout.foldersOnPath(root, accountAddress)) {
+				revalidateFolder(folder)
+			}
+			save()
+		}
+		val keyFile = keyFiles[address] ?: return null
+		if (!keyFile.isFile) {
+			val clean = !changed
+			removeKeyFile(keyFile.path)
+			persist(clean, record(REMOVED_RECORD, address, keyFile.path))
+			return null
+		}
+		return keyFile
+	}
+
+	/**
+	 * Provides addresses of all indexed key-files
+	 *
+	 * @return list of addresses
+	 */
+	@Synchronized
+	fun addresses(): List<String> {
+		revalidate()
+		return ArrayList(keyFiles.keys)
+	}
+
+	/**
+	 * Register the key-file which was written to the keystore folder
+	 *
+	 * @param accountAddress - hex address of the account
+	 * @param keyFile        - written key-file
+	 */
+	@Synchronized
+	fun put(accountAddress: String, keyFile: File) {
+		val file = keyFile.absoluteFile
+		if (!loaded || !isInside(file)) {
+			return
+		}
+		val clean = !changed
+		val address = normalizeAddress(accountAddress)
+		addKeyFile(address, file)
+		persist(clean, record(KEY_FILE_RECORD, address, file.path), *touchFolder(file.parentFile))
+	}
+
+	/**
+	 * Unregister the key-file of the account (after deleting)
+	 *
+	 * @param accountAddress - hex address of the account
+	 */
+	@Synchronized
+	fun remove(accountAddress: String) {
+		val address = normalizeAddress(accountAddress)
+		val keyFile = keyFiles[address] ?: return
+		val clean = !changed
+		removeKeyFile(keyFile.path)
+		persist(clean, record(REMOVED_RECORD, address, keyFile.path), *touchFolder(keyFile.parentFile))
+	}
+
+	/**
+	 * Move the stamp of the folder to our own write, so the next request doesn't rescan the folder.
+	 * The storage looks the account up right before writing or deleting its key-file, so a trusted
+	 * stamp was current just before the change.
+	 *
+	 * @return journal record of the new stamp (empty if the stamp is not trusted)
+	 */
+	private fun touchFolder(folder: File): Array<String> {
+		val stamp = folders[folder.path]
+		if (stamp == null || stamp == UNTRUSTED_STAMP) {
+			return emptyArray()
+		}
+		val modified = folder.lastModified()
+		folders[folder.path] = modified
+		return arrayOf(record(FOLDER_RECORD, modified.toString(), folder.path))
+	}
+
+	/**
+	 * Build the index (once) and rescan the folders which were modified since the last scan
+	 */
+	private fun revalidate() {
+		load()
+		for (path in ArrayList(folders.keys)) {
+			if (folders.containsKey(path)) {
+				revalidateFolder(File(path))
+			}
+		}
+		revalidateFolder(root)
+		save()
+	}
+
+	/**
+	 * Build the index: read the persisted one or scan the keystore folder (once)
+	 */
+	private fun load() {
+		if (!loaded) {
+			if (!read()) {
+				clear()
+				if (root.isDirectory) {
+					scanRoot()
+				}
+			}
+			loaded = true
+		}
+	}
+
+	/**
+	 * Rescan the folder if it was modified since the last scan (subfolders are not checked)
+	 */
+	private fun revalidateFolder(folder: File) {
+		val stamp = folders[folder.path]
+		if (stamp == null) {
+			if (folder.isDirectory) {
+				scanFolder(folder)
+			}
+		} else if (!folder.isDirectory) {
+			removeFolder(folder.path)
+		} else if (stamp != folder.lastModified()) {
+			rescanFolder(folder)
+		}
+	}
+
+	/**
+	 * Initial scan of the keystore folder (parallel if the pool is given)
+	 */
+	private fun scanRoot() {
+		if (scanExecutor == null) {
+			scanFolder(root)
+			return
+		}
+		try {
+			val result = KeyStoreScanner(scanExecutor, trustFileNames).scan(root)
+			folders.putAll(result.folders)
+			for ((path, address) in result.addresses) {
+				addKeyFile(address, File(path))
+			}
+		} catch (e: InterruptedException) {
+			Thread.currentThread().interrupt()
+			clear()
+			scanFolder(root)
+		} catch (e: ExecutionException) {
+			Log.e(TAG, "Parallel scan failed", e)
+			clear()
+			scanFolder(root)
+		}
+	}
+
+	/**
+	 * Full (recursive) scan of the folder
+	 */
+	private fun scanFolder(folder: File) {
+		folders[folder.path] = modificationStamp(folder)
+		changed = true
+		val files = folder.listFiles() ?: return
+		for (file in files) {
+			if (file.isDirectory) {
+				scanFolder(file)
+			} else if (file.name.endsWith(KEY_FILE_FORMAT)) {
+				readKeyFile(file)
+			}
+		}
+	}
+
+	/**
+	 * Sync the index with the current content of the modified folder.
+	 * Already indexed key-files are not parsed again.
+	 */
+	private fun rescanFolder(folder: File) {
+		folders[folder.path] = modificationStamp(folder)
+		changed = true
+		val files = folder.listFiles() ?: return
+		val present = HashSet<String>()
+		for (file in files) {
+			present.add(file.path)
+			if (file.isDirectory) {
+				if (!folders.containsKey(file.path)) {
+					scanFolder(file)
+				}
+			} else if (file.name.endsWith(KEY_FILE_FORMAT) && !addresses.containsKey(file.path)) {
+				readKeyFile(file)
+			}
+		}
+		val indexed = folderKeyFiles[folder.path] ?: return
+		for (path in ArrayList(indexed)) {
+			if (!present.contains(path)) {
+				removeKeyFile(path)
+			}
+		}
+	}
+
+	private fun readKeyFile(keyFile: File) {
+		val address = KeyFileReader.resolveAddress(keyFile, trustFileNames)
+		if (address != null) {
+			addKeyFile(address, keyFile)
+		}
+	}
+
+	private fun addKeyFile(address: String, keyFile: File) {
+		val previous = addresses.put(keyFile.path, address)
+		if (previous != null && previous != address && keyFiles[previous]?.path == keyFile.path) {
+			keyFiles.remove(previous)
+		}
+		keyFiles[address] = keyFile
+		folderKeyFiles.getOrPut(keyFile.parent) { HashSet() }.add(keyFile.path)
+		changed = true
+	}
+
+	private fun removeKeyFile(path: String) {
+		val address = addresses.remove(path) ?: return
+		if (keyFiles[address]?.path == path) {
+			keyFiles.remove(address)
+		}
+		val parent = File(path).parent
+		val folderFiles = folderKeyFiles[parent]
+		if (folderFiles != null && folderFiles.remove(path) && folderFiles.isEmpty()) {
+			folderKeyFiles.remove(parent)
+		}
+		changed = true
+	}
+
+	private fun removeFolder(path: String) {
+		folders.remove(path)
+		val indexed = folderKeyFiles[path]
+		if (indexed != null) {
+			for (keyFilePath in ArrayList(indexed)) {
+				removeKeyFile(keyFilePath)
+			}
+		}
+		changed = true
+	}
+
+	private fun clear() {
+		keyFiles.clear()
+		addresses.clear()
+		folders.clear()
+		folderKeyFiles.clear()
+		changed = true
+	}
+
+	private fun isInside(file: File): Boolean {
+		return file.path.startsWith(root.path + File.separator)
+	}
+
+	/**
+	 * Read the persisted index
+	 *
+	 * @return true if the index was read
+	 */
+	private fun read(): Boolean {
+		if (!indexFile.isFile) {
+			return false
+		}
+		clear()
+		try {
+			var records = 0
+			BufferedReader(FileReader(indexFile)).use { reader ->
+				if (reader.readLine() != INDEX_HEADER) {
+					return false
+				}
+				var line = reader.readLine()
+				while (line != null) {
+					val parts = line.split(" ", limit = 3)
+					if (parts.size != 3) {
+						return false
+					}
+					// journal records are replayed in order, the last one wins
+					when (parts[0]) {
+						FOLDER_RECORD -> folders[resolve(parts[2]).path] = parts[1].toLong()
+						KEY_FILE_RECORD -> addKeyFile(parts[1], resolve(parts[2]))
+						REMOVED_RECORD -> removeKeyFile(resolve(parts[2]).path)
+						else -> return false
+					}
+					records++
+					line = reader.readLine()
+				}
+			}
+			changed = false
+			journalRecords = records - folders.size - addresses.size
+			return true
+		} catch (e: IOException) {
+			Log.e(TAG, "Incorrect index file " + indexFile.name)
+		} catch (e: NumberFormatException) {
+			Log.e(TAG, "Incorrect index file " + indexFile.name)
+		}
+		return false
+	}
+
+	/**
+	 * Persist the index if it was changed (write to a temp file and rename it)
+	 */
+	private fun save() {
+		if (!changed) {
+			return
+		}
+		val temp = File(indexFile.path + TEMP_FILE_FORMAT)
+		try {
+			BufferedWriter(FileWriter(temp)).use { writer ->
+				writer.write(INDEX_HEADER)
+				writer.newLine()
+				for ((path, stamp) in folders) {
+					writer.write(record(FOLDER_RECORD, stamp.toString(), path))
+					writer.newLine()
+				}
+				for ((path, address) in addresses) {
+					writer.write(record(KEY_FILE_RECORD, address, path))
+					writer.newLine()
+				}
+			}
+			if (!temp.renameTo(indexFile) && !(indexFile.delete() && temp.renameTo(indexFile))) {
+				throw IOException("Can't rename " + temp.name)
+			}
+			changed = false
+			journalRecords = 0
+		} catch (e: IOException) {
+			temp.delete()
+			Log.e(TAG, "Can't save index file " + indexFile.name)
+		}
+	}
+
+	/**
+	 * Persist a single update. If the persisted index was up to date before the update (clean),
+	 * the records are appended to it, otherwise (or when the journal is too long) the whole index is saved.
+	 */
+	private fun persist(clean: Boolean, vararg records: String) {
+		if (!clean || !indexFile.isFile || journalRecords + records.size > Math.max(MIN_JOURNAL_RECORDS, folders.size + addresses.size)) {
+			save()
+			return
+		}
+		try {
+			BufferedWriter(FileWriter(indexFile, true)).use { writer ->
+				for (record in records) {
+					writer.write(record)
+					writer.newLine()
+				}
+			}
+			journalRecords += records.size
+			changed = false
+		} catch (e: IOException) {
+			Log.e(TAG, "Can't append to index file " + indexFile.name)
+		}
+	}
+
+	private fun record(type: String, value: String, path: String): String {
+		return type + " " + value + " " + relativize(path)
+	}
+
+	private fun relativize(path: String): String {
+		return if (path == root.path) ROOT_PATH else path.substring(root.path.length + 1)
+	}
+
+	private fun resolve(relativePath: String): File {
+		return if (relativePath == ROOT_PATH) root else File(root, relativePath)
+	}
+
+	companion object {
+		private const val ACCOUNT_PREFIX = "0x"
+		private const val ADDRESS_LENGTH = 40
+		internal const val KEY_FILE_FORMAT = ".json"
+		private const val INDEX_FILE_FORMAT = ".idx"
+		private const val TEMP_FILE_FORMAT = ".tmp"
+
+		private const val INDEX_HEADER = "keystore-index 1"
+		private const val FOLDER_RECORD = "d"
+		private const val KEY_FILE_RECORD = "f"
+		private const val REMOVED_RECORD = "r"
+		private const val MIN_JOURNAL_RECORDS = 64
+		private const val ROOT_PATH = "."
+
+		private const val MODIFICATION_TIME_RESOLUTION = 2000L
+		private const val UNTRUSTED_STAMP = -1L
+
+		private val TAG = KeyStoreIndex::class.java.simpleName
+
+		/**
+		 * Folders modified just now are stored as untrusted (the time resolution of a file system
+		 * can be up to a few seconds), so they will be rescanned by the next request
+		 */
+		internal fun modificationStamp(folder: File): Long {
+			val modified = folder.lastModified()
+			return if (System.currentTimeMillis() - modified < MODIFICATION_TIME_RESOLUTION) UNTRUSTED_STAMP else modified
+		}
+
+		/**
+		 * Convert hex address to the key-file form (lower case, without prefix)
+		 */
+		fun normalizeAddress(accountAddress: String): String {
+			val address = if (accountAddress.startsWith(ACCOUNT_PREFIX)) accountAddress.substring(ACCOUNT_PREFIX.length) else accountAddress
+			return address.toLowerCase()
+		}
+
+		/**
+		 * Check that the normalized address is 20 bytes of hex
+		 */
+		fun isAddress(normalizedAddress: String): Boolean {
+			if (normalizedAddress.length != ADDRESS_LENGTH) {
+				return false
+			}
+			for (c in normalizedAddress) {
+				if (c !in '0'..'9' && c !in 'a'..'f') {
+					return false
+				}
+			}
+			return true
+		}
+	}
+}
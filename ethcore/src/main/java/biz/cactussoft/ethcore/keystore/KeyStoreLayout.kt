@@ -0,0 +1,59 @@
+package biz.cactussoft.ethcore.keystore
+
+import java.io.File
+
+/**
+ * Layout of the keystore folder
+ *
+ * FLAT    - all key-files are placed in the keystore folder
+ * SHARDED - key-files are placed in subfolders by the address prefix (0xabcd... -> ab/cd/),
+ *           so no folder holds more than a small part of the accounts
+ *
+ * @param levels - number of the subfolder levels
+ */
+enum class KeyStoreLayout(private val levels: Int) {
+	FLAT(0),
+	SHARDED(2);
+
+	/**
+	 * Folder of the account key-file
+	 *
+	 * @param keyStoreDir    - keystore folder
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return folder (may not exist yet), null if the address is not a 20 bytes hex address
+	 */
+	fun folderFor(keyStoreDir: File, accountAddress: String): File? {
+		val address = KeyStoreIndex.normalizeAddress(accountAddress)
+		if (!KeyStoreIndex.isAddress(address)) {
+			return null
+		}
+		var folder = keyStoreDir
+		for (level in 0 until levels) {
+			folder = File(folder, address.substring(level * SHARD_NAME_LENGTH, (level + 1) * SHARD_NAME_LENGTH))
+		}
+		return folder
+	}
+
+	/**
+	 * Folders on the way from the keystore folder to the account folder (both included)
+	 *
+	 * @param keyStoreDir    - keystore folder
+	 * @param accountAddress - hex address of the account
+	 *
+	 * @return list of folders (empty if the address is not a 20 bytes hex address)
+	 */
+	fun foldersOnPath(keyStoreDir: File, accountAddress: String): List<File> {
+		val folders = ArrayList<File>()
+		var folder: File? = folderFor(keyStoreDir, accountAddress) ?: return folders
+		for (level in 0..levels) {
+			folders.add(0, folder!!)
+			folder = folder.parentFile
+		}
+		return folders
+	}
+
+	companion object {
+		private const val SHARD_NAME_LENGTH = 2
+	}
+}
@@ -0,0 +1,64 @@
+package biz.cactussoft.ethcore.keystore
+
+import biz.cactussoft.ethcore.models.AccountResult
+import java.io.File
+import java.io.IOException
+
+/**
+ * Migration of an existing keystore folder to another layout (in place).
+ * Key-files are moved by rename, so the migration doesn't rewrite or decrypt them.
+ *
+ * @param keyStoreDir    - keystore folder
+ * @param layout         - target layout
+ * @param trustFileNames - take addresses from the key-file names when possible
+ */
+class KeyStoreResharder(keyStoreDir: File,
+						private val layout: KeyStoreLayout,
+						private val trustFileNames: Boolean = true) {
+
+	private val root = keyStoreDir.absoluteFile
+
+	/**
+	 * Move every key-file of the keystore folder into the folder defined by the layout.
+	 * Key-files which are already in place are skipped, empty folders are removed.
+	 *
+	 * @return results of the moved (or failed) key-files
+	 */
+	fun reshard(): List<AccountResult> {
+		val keyFiles = KeyFileReader.listKeyFiles(root)
+		val results = ArrayList<AccountResult>()
+		for (keyFile in keyFiles) {
+			val address = KeyFileReader.resolveAddress(keyFile, trustFileNames) ?: continue
+			val folder = layout.folderFor(root, address)
+			if (folder == null) {
+				results.add(AccountResult(address, keyFile, IOException("Incorrect address " + address)))
+				continue
+			}
+			if (keyFile.parentFile == folder) {
+				continue
+			}
+			val destination = File(folder, keyFile.name)
+			if (destination.exists()) {
+				results.add(AccountResult(address, keyFile, IOException("File " + destination.path + " already exists")))
+			} else if (!folder.isDirectory && !folder.mkdirs()) {
+				results.add(AccountResult(address, keyFile, IOException("Can't create folder " + folder.path)))
+			} else if (!keyFile.renameTo(destination)) {
+				results.add(AccountResult(address, keyFile, IOException("Can't move " + keyFile.path)))
+			} else {
+				results.add(AccountResult(address, destination, null))
+			}
+		}
+		removeEmptyFolders(root)
+		return results
+	}
+
+	private fun removeEmptyFolders(folder: File) {
+		val files = folder.listFiles() ?: return
+		for (file in files) {
+			if (file.isDirectory) {
+				removeEmptyFolders(file)
+				file.delete()
+			}
+		}
+	}
+}
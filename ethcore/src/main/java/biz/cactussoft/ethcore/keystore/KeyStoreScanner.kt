@@ -0,0 +1,93 @@
+package biz.cactussoft.ethcore.keystore
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+
+/**
+ * Parallel scan of the keystore folder.
+ * Every folder is listed by a separate task (subfolders are submitted as soon as they are found)
+ * and key-files are parsed in batches, so both traversal and parsing are spread over the pool.
+ *
+ * @param executor       - pool used for the scan
+ * @param trustFileNames - take addresses from the key-file names when possible
+ */
+class KeyStoreScanner(private val executor: ExecutorService,
+					  private val trustFileNames: Boolean) {
+
+	/**
+	 * Result of the scan
+	 *
+	 * @param folders   - folder path -> modification time of the folder
+	 * @param addresses - key-file path -> address (lower case, without prefix)
+	 */
+	class Result(val folders: Map<String, Long>,
+				 val addresses: Map<String, String>)
+
+	/**
+	 * Scan the folder and all its subfolders. Blocks until all tasks are done.
+	 *
+	 * @param root - keystore folder
+	 *
+	 * @return scanned folders and key-files
+	 */
+	@Throws(InterruptedException::class, ExecutionException::class)
+	fun scan(root: File): Result {
+		val folders = ConcurrentHashMap<String, Long>()
+		val addresses = ConcurrentHashMap<String, String>()
+		val tasks = ConcurrentLinkedQueue<Future<*>>()
+		submitFolder(root, folders, addresses, tasks)
+		var task = tasks.poll()
+		while (task != null) {
+			// child tasks are queued before the parent task completes
+			task.get()
+			task = tasks.poll()
+		}
+		return Result(folders, addresses)
+	}
+
+	private fun submitFolder(folder: File,
+							 folders: MutableMap<String, Long>,
+							 addresses: MutableMap<String, String>,
+							 tasks: MutableCollection<Future<*>>) {
+		tasks.add(executor.submit {
+			folders[folder.path] = KeyStoreIndex.modificationStamp(folder)
+			val files = folder.listFiles()
+			if (files != null) {
+				val keyFiles = ArrayList<File>()
+				for (file in files) {
+					if (file.isDirectory) {
+						submitFolder(file, folders, addresses, tasks)
+					} else if (file.name.endsWith(KeyStoreIndex.KEY_FILE_FORMAT)) {
+						keyFiles.add(file)
+					}
+				}
+				var from = 0
+				while (from < keyFiles.size) {
+					submitKeyFiles(keyFiles.subList(from, Math.min(from + BATCH_SIZE, keyFiles.size)), addresses, tasks)
+					from += BATCH_SIZE
+				}
+			}
+		})
+	}
+
+	private fun submitKeyFiles(keyFiles: List<File>,
+							   addresses: MutableMap<String, String>,
+							   tasks: MutableCollection<Future<*>>) {
+		tasks.add(executor.submit {
+			for (keyFile in keyFiles) {
+				val address = KeyFileReader.resolveAddress(keyFile, trustFileNames)
+				if (address != null) {
+					addresses[keyFile.path] = address
+				}
+			}
+		})
+	}
+
+	companion object {
+		private const val BATCH_SIZE = 256
+	}
+}
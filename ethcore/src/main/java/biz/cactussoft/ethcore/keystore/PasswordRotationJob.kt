@@ -0,0 +1,92 @@
+package biz.cactussoft.ethcore.keystore
+
+import biz.cactussoft.ethcore.exceptions.AccountNotFoundException
+import biz.cactussoft.ethcore.exceptions.IncorrectPassException
+import biz.cactussoft.ethcore.models.AccountResult
+import org.web3j.crypto.CipherException
+import org.web3j.crypto.Wallet
+import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Bulk change of the key-file password.
+ * Every account is decrypted and re-encrypted (light scrypt params) by a separate task,
+ * the number of concurrent key derivations is limited by the memory budget.
+ * Key-files are replaced by the storage (atomically for the file based storages).
+ *
+ * @param keyStorage   - storage of the key-files
+ * @param executor     - pool used for the key derivations
+ * @param memoryBudget - memory budget of the key derivations
+ */
+class PasswordRotationJob(private val keyStorage: KeyStorage,
+						  private val executor: ExecutorService,
+						  private val memoryBudget: KdfMemoryBudget) {
+
+	/**
+	 * Change password of the accounts. Blocks until all accounts are processed.
+	 *
+	 * @param addresses   - hex addresses of the accounts
+	 * @param oldPassword - old password
+	 * @param newPassword - new password
+	 * @param listener    - optional progress listener (completed, total, result), called from the pool threads
+	 *
+	 * @return results in the order of the addresses
+	 */
+	@Throws(InterruptedException::class, ExecutionException::class)
+	fun run(addresses: List<String>,
+			oldPassword: String,
+			newPassword: String,
+			listener: ((Int, Int, AccountResult) -> Unit)? = null): List<AccountResult> {
+		val completed = AtomicInteger()
+		val futures = ArrayList<Future<AccountResult>>()
+		try {
+			for (address in addresses) {
+				futures.add(executor.submit(Callable<AccountResult> {
+					val result = changePassword(address, oldPassword, newPassword)
+					listener?.invoke(completed.incrementAndGet(), addresses.size, result)
+					result
+				}))
+			}
+			val results = ArrayList<AccountResult>()
+			for (future in futures) {
+				results.add(future.get())
+			}
+			return results
+		} finally {
+			// nobody collects the results after a failure or an interruption
+			for (future in futures) {
+				future.cancel(true)
+			}
+		}
+	}
+
+	private fun changePassword(address: String,
+							   oldPassword: String,
+							   newPassword: String): AccountResult {
+		try {
+			val walletFile = keyStorage.load(address)
+					?: return AccountResult(address, null, AccountNotFoundException("Account $address not found. Perhaps it was not imported."))
+			val keyFile: File?
+			val permits = memoryBudget.acquire(Math.max(KdfMemoryBudget.decryptionCost(walletFile), KdfMemoryBudget.lightEncryptionCost()))
+			try {
+				val keyPair = KeyFileDecryptor.decrypt(oldPassword, walletFile)
+				keyFile = keyStorage.store(Wallet.createLight(newPassword, keyPair))
+			} finally {
+				memoryBudget.release(permits)
+			}
+			return AccountResult(address, keyFile, null)
+		} catch (e: CipherException) {
+			return AccountResult(address, null, IncorrectPassException("Incorrect file pass"))
+		} catch (e: InterruptedException) {
+			Thread.currentThread().interrupt()
+			return AccountResult(address, null, e)
+		} catch (e: Exception) {
+			// malformed key-files, unsupported kdf, io errors
+			return AccountResult(address, null, e)
+		}
+	}
+}
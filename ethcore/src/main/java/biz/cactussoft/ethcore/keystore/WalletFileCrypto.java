@@ -0,0 +1,22 @@
+package biz.cactussoft.ethcore.keystore;
+
+import org.web3j.crypto.WalletFile;
+
+/**
+ * Setters of the web3j {@link WalletFile.Crypto} which take the package-private {@code WalletFile.KdfParams}.
+ * Kotlin casts the argument to the parameter type, which can't be accessed outside of web3j,
+ * javac passes the concrete params as is
+ */
+final class WalletFileCrypto {
+
+	private WalletFileCrypto() {
+	}
+
+	static void setKdfParams(WalletFile.Crypto crypto, WalletFile.ScryptKdfParams params) {
+		crypto.setKdfparams(params);
+	}
+
+	static void setKdfParams(WalletFile.Crypto crypto, WalletFile.Aes128CtrKdfParams params) {
+		crypto.setKdfparams(params);
+	}
+}
@@ -0,0 +1,18 @@
+package biz.cactussoft.ethcore.models
+
+import java.io.File
+
+/**
+ * Result of a bulk operation for one account (or one key-file)
+ *
+ * @param address - hex address of the account (null if the key-file can't be read)
+ * @param keyFile - key-file of the account
+ * @param error   - error, null if the operation succeeded
+ */
+class AccountResult(val address: String?,
+					val keyFile: File?,
+					val error: Exception?) {
+
+	val isSuccessful: Boolean
+		get() = error == null
+}
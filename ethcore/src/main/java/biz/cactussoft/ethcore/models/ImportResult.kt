@@ -0,0 +1,22 @@
+package biz.cactussoft.ethcore.models
+
+import java.io.File
+
+/**
+ * Result of the import of one key-file
+ *
+ * @param source  - name of the imported file (or zip entry)
+ * @param address - hex address of the account (null if the file can't be read)
+ * @param keyFile - key-file written to the keystore folder (null if it was not written or the storage is not file based)
+ * @param skipped - true if the account was already imported
+ * @param error   - error, null if the import succeeded or was skipped
+ */
+class ImportResult(val source: String,
+				   val address: String?,
+				   val keyFile: File?,
+				   val skipped: Boolean,
+				   val error: Exception?) {
+
+	val isSuccessful: Boolean
+		get() = error == null
+}
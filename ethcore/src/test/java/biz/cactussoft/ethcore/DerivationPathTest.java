@@ -0,0 +1,122 @@
+package biz.cactussoft.ethcore;
+
+import biz.cactussoft.ethcore.keystore.CredentialsCache;
+import biz.cactussoft.ethcore.keystore.InMemoryKeyStorage;
+import biz.cactussoft.ethcore.models.HDWallet;
+
+import kotlin.jvm.functions.Function0;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicHierarchy;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Test;
+import org.web3j.crypto.Credentials;
+import org.web3j.utils.Numeric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Derivations of {@link DerivationPath} and {@link HDWalletManager} against the BIP-32 test vector 1,
+ * a BIP-44 ethereum address and the bitcoinj {@link DeterministicHierarchy}
+ */
+public class DerivationPathTest {
+	// BIP-32 test vector 1
+	private static final String SEED = "000102030405060708090a0b0c0d0e0f";
+	private static final String PATH = "m/0'/1/2'/2";
+	private static final String PATH_XPRV = "xprvA2JDeKCSNNZky6uBCviVfJSKyQ1mDYahRjijr5idH2WwLsEd4Hsb2Tyh8RfQMuPh7f7RtyzTtdrbdqqsunu5Mm3wDvUAKRHSC34sJ7in334";
+	private static final int CHILD_INDEX = 1000000000;
+	private static final String CHILD_XPRV = "xprvA41z7zogVVwxVSgdKUHDy1SKmdb533PjDz7J6N6mV6uS3ze1ai8FHa8kmHScGpWmj4WggLyQjgPie1rFSruoUihUZREPSL39UNdE3BBDu76";
+
+	// BIP-39 / BIP-44 mnemonic, m/44'/60'/0'/0/0
+	private static final List<String> MNEMONIC = Arrays.asList("abandon", "abandon", "abandon", "abandon", "abandon",
+			"abandon", "abandon", "abandon", "abandon", "abandon", "abandon", "about");
+	private static final String FIRST_ADDRESS = "0x9858effd232b4033e47d90003d41ec34ecaeda94";
+
+	@Test
+	public void deriveParent_matchesVector() throws Exception {
+		DeterministicKey masterKey = HDKeyDerivation.createMasterPrivateKey(Numeric.hexStringToByteArray(SEED));
+
+		DeterministicKey key = DerivationPath.Companion.compile(PATH).deriveParent(masterKey);
+
+		assertEquals(PATH_XPRV, key.serializePrivB58(MainNetParams.get()));
+	}
+
+	@Test
+	public void getChildKey_matchesVector() throws Exception {
+		DeterministicKey masterKey = HDKeyDerivation.createMasterPrivateKey(Numeric.hexStringToByteArray(SEED));
+
+		DeterministicKey key = HDWalletManager.Companion.getChildKey(masterKey, PATH, CHILD_INDEX);
+
+		assertEquals(CHILD_XPRV, key.serializePrivB58(MainNetParams.get()));
+	}
+
+	@Test
+	public void cachedAccountKey_matchesVector() throws Exception {
+		DeterministicKey masterKey = HDKeyDerivation.createMasterPrivateKey(Numeric.hexStringToByteArray(SEED));
+		final DeterministicKey accountKey = HDWalletManager.Companion.getAccountKey(masterKey, PATH);
+		HDAccountCache cache = new HDAccountCache(4);
+		Function0<DeterministicKey> derive = new Function0<DeterministicKey>() {
+			@Override
+			public DeterministicKey invoke() {
+				return accountKey;
+			}
+		};
+
+		DeterministicKey derived = cache.getOrDerive(MNEMONIC, "", PATH, derive);
+		DeterministicKey cached = cache.getOrDerive(MNEMONIC, "", PATH, derive);
+
+		assertEquals(PATH_XPRV, derived.serializePrivB58(MainNetParams.get()));
+		assertEquals(PATH_XPRV, cached.serializePrivB58(MainNetParams.get()));
+		assertEquals(CHILD_XPRV, DerivationPath.Companion.deriveChild(cached, CHILD_INDEX).serializePrivB58(MainNetParams.get()));
+	}
+
+	@Test
+	public void getChildKeys_matchesHierarchy() throws Exception {
+		DeterministicKey masterKey = HDKeyDerivation.createMasterPrivateKey(Numeric.hexStringToByteArray(SEED));
+		DeterministicHierarchy hierarchy = new DeterministicHierarchy(masterKey);
+
+		List<DeterministicKey> keys = HDWalletManager.Companion.getChildKeys(masterKey, PATH, 5, 10);
+
+		assertEquals(10, keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			DeterministicKey expected = hierarchy.get(path(5 + i), false, true);
+			assertEquals(expected.getPrivateKeyAsHex(), keys.get(i).getPrivateKeyAsHex());
+			assertEquals(expected.getPath(), keys.get(i).getPath());
+			assertEquals(expected.getParentFingerprint(), keys.get(i).getParentFingerprint());
+		}
+	}
+
+	@Test
+	public void getConsecutiveHDWallets_withAndWithoutCachedNode_matchesHierarchy() throws Exception {
+		EthManager manager = new EthManager("http://localhost:8545", new InMemoryKeyStorage(), new CredentialsCache(), new HDAccountCache(4));
+		byte[] seed = HDWalletManager.Companion.mnemonicToSeed(MNEMONIC, "");
+		DeterministicHierarchy hierarchy = new DeterministicHierarchy(HDKeyDerivation.createMasterPrivateKey(seed));
+		List<ChildNumber> accountPath = DerivationPath.Companion.compile(EthManager.DEFAULT_DERIVATION_PATH).getChildNumbers();
+
+		// the first call derives the account node, the second one takes it from the cache
+		List<HDWallet> derived = manager.getConsecutiveHDWallets(MNEMONIC, 0, 5);
+		List<HDWallet> cached = manager.getConsecutiveHDWallets(MNEMONIC, 0, 5);
+
+		assertEquals(FIRST_ADDRESS, derived.get(0).getAddress());
+		for (int i = 0; i < 5; i++) {
+			List<ChildNumber> path = new ArrayList<ChildNumber>(accountPath);
+			path.add(new ChildNumber(i));
+			String expected = Credentials.create(hierarchy.get(path, false, true).getPrivateKeyAsHex()).getAddress();
+			assertEquals(expected, derived.get(i).getAddress());
+			assertEquals(expected, cached.get(i).getAddress());
+			assertEquals(i, derived.get(i).getIndex());
+			assertEquals(i, cached.get(i).getIndex());
+		}
+		assertEquals(FIRST_ADDRESS, manager.getHDWallet(MNEMONIC, 0).get(0).getAddress());
+	}
+
+	private static List<ChildNumber> path(int index) {
+		return Arrays.asList(new ChildNumber(0, true), new ChildNumber(1), new ChildNumber(2, true), new ChildNumber(2),
+				new ChildNumber(index));
+	}
+}
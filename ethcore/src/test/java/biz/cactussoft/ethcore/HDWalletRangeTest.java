@@ -0,0 +1,53 @@
+package biz.cactussoft.ethcore;
+
+import biz.cactussoft.ethcore.keystore.CredentialsCache;
+import biz.cactussoft.ethcore.keystore.InMemoryKeyStorage;
+import biz.cactussoft.ethcore.models.HDWallet;
+
+import org.bitcoinj.crypto.DeterministicKey;
+import org.junit.Test;
+import org.web3j.crypto.Credentials;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Addresses of the parallel range derivation (several chunks) against the addresses built from the private keys
+ */
+public class HDWalletRangeTest {
+	private static final List<String> MNEMONIC = Arrays.asList("abandon", "abandon", "abandon", "abandon", "abandon",
+			"abandon", "abandon", "abandon", "abandon", "abandon", "abandon", "about");
+	// m/44'/60'/0'/0/0 of the mnemonic
+	private static final String FIRST_ADDRESS = "0x9858effd232b4033e47d90003d41ec34ecaeda94";
+
+	@Test
+	public void getConsecutiveHDWallets_onExecutor_matchesPrivateKeys() throws Exception {
+		EthManager manager = new EthManager("http://localhost:8545", new InMemoryKeyStorage(), new CredentialsCache(), new HDAccountCache(4));
+		DeterministicKey masterKey = HDWalletManager.Companion.generateMasterKey(HDWalletManager.Companion.mnemonicToSeed(MNEMONIC, ""));
+		int count = 2 * EthManager.HD_RANGE_CHUNK_SIZE + 17;
+		List<DeterministicKey> keys = HDWalletManager.Companion.getChildKeys(masterKey, EthManager.DEFAULT_DERIVATION_PATH, 0, count);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<HDWallet> wallets = manager.getConsecutiveHDWallets(MNEMONIC, "", EthManager.DEFAULT_DERIVATION_PATH, 0, count, executor);
+			List<HDWallet> shifted = manager.getConsecutiveHDWallets(MNEMONIC, "", EthManager.DEFAULT_DERIVATION_PATH, 100, count - 100, executor);
+
+			assertEquals(count, wallets.size());
+			assertEquals(FIRST_ADDRESS, wallets.get(0).getAddress());
+			for (int i = 0; i < count; i++) {
+				assertEquals(i, wallets.get(i).getIndex());
+				assertEquals(Credentials.create(keys.get(i).getPrivateKeyAsHex()).getAddress(), wallets.get(i).getAddress());
+			}
+			assertEquals(count - 100, shifted.size());
+			for (int i = 0; i < shifted.size(); i++) {
+				assertEquals(100 + i, shifted.get(i).getIndex());
+				assertEquals(wallets.get(100 + i).getAddress(), shifted.get(i).getAddress());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
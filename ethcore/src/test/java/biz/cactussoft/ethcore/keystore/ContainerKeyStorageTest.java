@@ -0,0 +1,176 @@
+package biz.cactussoft.ethcore.keystore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.web3j.crypto.WalletFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reopening of the container and recovery of an interrupted store
+ */
+public class ContainerKeyStorageTest {
+	// container layout (see ContainerKeyStorage)
+	private static final int COUNT_OFFSET = 8;
+	private static final int HEADER_SIZE = 12;
+	private static final int RECORD_SIZE = 166;
+	private static final byte STATUS_ACTIVE = 1;
+
+	private static final String ADDRESS_A = "8a4a4a8bbcf8e6af1d8d8fe3e8c3a1f2b3c4d5e6";
+	private static final String ADDRESS_B = "00112233445566778899aabbccddeeff00112233";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void reopen_keepsStoredAccounts() throws Exception {
+		File file = new File(folder.getRoot(), "keys.bin");
+		ContainerKeyStorage storage = new ContainerKeyStorage(file);
+		storage.store(walletFile(ADDRESS_A, 1), null);
+		storage.store(walletFile(ADDRESS_B, 2), null);
+		storage.store(walletFile(ADDRESS_A, 3), null);
+		storage.close();
+
+		storage = new ContainerKeyStorage(file);
+		assertEquals(2, storage.addresses().size());
+		assertEquals(ciphertext(3), storage.load(ADDRESS_A).getCrypto().getCiphertext());
+		assertEquals(ciphertext(2), storage.load(ADDRESS_B).getCrypto().getCiphertext());
+		assertEquals(walletFile(ADDRESS_A, 3).getId(), storage.load(ADDRESS_A).getId());
+		storage.close();
+	}
+
+	@Test
+	public void reopen_afterCrashBeforeCount_keepsPreviousRecord() throws Exception {
+		File file = new File(folder.getRoot(), "keys.bin");
+		ContainerKeyStorage storage = new ContainerKeyStorage(file);
+		storage.store(walletFile(ADDRESS_A, 1), null);
+		storage.store(walletFile(ADDRESS_A, 2), null);
+		storage.close();
+		// the second record is written, but the count is not published and nothing is marked
+		setCount(file, 1);
+		setStatus(file, 0, STATUS_ACTIVE);
+
+		storage = new ContainerKeyStorage(file);
+		assertEquals(ciphertext(1), storage.load(ADDRESS_A).getCrypto().getCiphertext());
+		storage.store(walletFile(ADDRESS_A, 3), null);
+		storage.close();
+
+		storage = new ContainerKeyStorage(file);
+		assertEquals(Arrays.asList(ADDRESS_A), storage.addresses());
+		assertEquals(ciphertext(3), storage.load(ADDRESS_A).getCrypto().getCiphertext());
+		storage.close();
+	}
+
+	@Test
+	public void reopen_afterCrashBeforeDelete_keepsLastRecord() throws Exception {
+		File file = new File(folder.getRoot(), "keys.bin");
+		ContainerKeyStorage storage = new ContainerKeyStorage(file);
+		storage.store(walletFile(ADDRESS_A, 1), null);
+		storage.store(walletFile(ADDRESS_A, 2), null);
+		storage.close();
+		// the count is published, but the replaced record is not marked as deleted
+		setStatus(file, 0, STATUS_ACTIVE);
+
+		storage = new ContainerKeyStorage(file);
+		assertEquals(Arrays.asList(ADDRESS_A), storage.addresses());
+		assertEquals(ciphertext(2), storage.load(ADDRESS_A).getCrypto().getCiphertext());
+		storage.compact();
+		assertEquals(ciphertext(2), storage.load(ADDRESS_A).getCrypto().getCiphertext());
+		storage.close();
+		assertEquals(1, readCount(file));
+	}
+
+	@Test
+	public void compact_thenStore_writesCompactedContainer() throws Exception {
+		File file = new File(folder.getRoot(), "keys.bin");
+		ContainerKeyStorage storage = new ContainerKeyStorage(file);
+		storage.store(walletFile(ADDRESS_A, 1), null);
+		storage.store(walletFile(ADDRESS_B, 2), null);
+		storage.store(walletFile(ADDRESS_A, 3), null);
+		storage.compact();
+		storage.store(walletFile(ADDRESS_B, 4), null);
+		storage.close();
+
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+		assertEquals(3, readCount(file));
+		storage = new ContainerKeyStorage(file);
+		assertEquals(ciphertext(3), storage.load(ADDRESS_A).getCrypto().getCiphertext());
+		assertEquals(ciphertext(4), storage.load(ADDRESS_B).getCrypto().getCiphertext());
+		storage.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void open_recordCountOutOfFile_fails() throws Exception {
+		File file = new File(folder.getRoot(), "keys.bin");
+		ContainerKeyStorage storage = new ContainerKeyStorage(file);
+		storage.store(walletFile(ADDRESS_A, 1), null);
+		storage.close();
+		setCount(file, (int) (file.length() / RECORD_SIZE) + 1);
+
+		new ContainerKeyStorage(file);
+	}
+
+	private static WalletFile walletFile(String address, int version) {
+		WalletFile.ScryptKdfParams params = new WalletFile.ScryptKdfParams();
+		params.setN(4096);
+		params.setR(8);
+		params.setP(6);
+		params.setDklen(32);
+		params.setSalt(hex(32, version + 10));
+		WalletFile.CipherParams cipherParams = new WalletFile.CipherParams();
+		cipherParams.setIv(hex(16, version + 20));
+		WalletFile.Crypto crypto = new WalletFile.Crypto();
+		crypto.setCipher("aes-128-ctr");
+		crypto.setCipherparams(cipherParams);
+		crypto.setCiphertext(ciphertext(version));
+		crypto.setKdf("scrypt");
+		crypto.setKdfparams(params);
+		crypto.setMac(hex(32, version + 30));
+		WalletFile walletFile = new WalletFile();
+		walletFile.setAddress(address);
+		walletFile.setCrypto(crypto);
+		walletFile.setId(new UUID(version, version).toString());
+		walletFile.setVersion(3);
+		return walletFile;
+	}
+
+	private static String ciphertext(int version) {
+		return hex(32, version);
+	}
+
+	private static String hex(int size, int value) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			builder.append(String.format("%02x", (value + i) & 0xff));
+		}
+		return builder.toString();
+	}
+
+	private static void setCount(File file, int count) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(COUNT_OFFSET);
+			raf.writeInt(count);
+		}
+	}
+
+	private static int readCount(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(COUNT_OFFSET);
+			return raf.readInt();
+		}
+	}
+
+	private static void setStatus(File file, int record, byte status) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(HEADER_SIZE + (long) record * RECORD_SIZE);
+			raf.writeByte(status);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package biz.cactussoft.ethcore.keystore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.web3j.crypto.WalletFile;
+import org.web3j.protocol.ObjectMapperFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lookups of the key-files in the flat and sharded keystore folders
+ */
+public class DirectoryKeyStorageTest {
+	private static final String ADDRESS_A = "8a4a4a8bbcf8e6af1d8d8fe3e8c3a1f2b3c4d5e6";
+	private static final String ADDRESS_B = "00112233445566778899aabbccddeeff00112233";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void contains_incorrectAddress_notFound() throws Exception {
+		File dir = folder.getRoot();
+		for (KeyStoreLayout layout : KeyStoreLayout.values()) {
+			DirectoryKeyStorage storage = new DirectoryKeyStorage(dir, layout, true);
+			IndexedKeyStorage indexed = new IndexedKeyStorage(dir, layout, true, null);
+			for (String address : new String[]{"", "0x", "0x12", "0xzz4a4a8bbcf8e6af1d8d8fe3e8c3a1f2b3c4d5e6"}) {
+				assertFalse(storage.contains(address));
+				assertNull(storage.load(address));
+				assertFalse(indexed.contains(address));
+			}
+		}
+	}
+
+	@Test
+	public void folderFor_incorrectAddress_isNull() {
+		File dir = folder.getRoot();
+
+		assertNull(KeyStoreLayout.SHARDED.folderFor(dir, "0x12"));
+		assertNull(KeyStoreLayout.FLAT.folderFor(dir, ""));
+		assertTrue(KeyStoreLayout.SHARDED.foldersOnPath(dir, "12").isEmpty());
+		assertEquals(new File(new File(dir, "8a"), "4a"),
+				KeyStoreLayout.SHARDED.folderFor(dir, "0x8A4A4A8BBCF8E6AF1D8D8FE3E8C3A1F2B3C4D5E6"));
+	}
+
+	@Test
+	public void load_misnamedKeyFile_checksJsonAddress() throws Exception {
+		for (KeyStoreLayout layout : KeyStoreLayout.values()) {
+			File dir = folder.newFolder(layout.name());
+			File misnamed = new File(layout.folderFor(dir, ADDRESS_A), KeyFileNames.INSTANCE.fileNameFor(ADDRESS_A));
+			writeWalletFile(misnamed, ADDRESS_B);
+			DirectoryKeyStorage storage = new DirectoryKeyStorage(dir, layout, true);
+			IndexedKeyStorage indexed = new IndexedKeyStorage(dir, layout, true, null);
+
+			assertNull(storage.load("0x" + ADDRESS_A));
+			assertNull(indexed.load("0x" + ADDRESS_A));
+
+			File keyFile = new File(layout.folderFor(dir, ADDRESS_A), "account.json");
+			writeWalletFile(keyFile, ADDRESS_A);
+			assertEquals(ADDRESS_A, storage.load("0x" + ADDRESS_A).getAddress());
+			assertEquals(ADDRESS_A, indexed.load("0x" + ADDRESS_A).getAddress());
+			assertEquals(keyFile, indexed.find(ADDRESS_A));
+		}
+	}
+
+	@Test
+	public void store_misnamedKeyFile_keepsOtherAccount() throws Exception {
+		File dir = folder.getRoot();
+		File misnamed = new File(dir, KeyFileNames.INSTANCE.fileNameFor(ADDRESS_A));
+		writeWalletFile(misnamed, ADDRESS_B);
+		DirectoryKeyStorage storage = new DirectoryKeyStorage(dir, KeyStoreLayout.FLAT, true);
+
+		WalletFile walletFile = new WalletFile();
+		walletFile.setAddress(ADDRESS_A);
+		walletFile.setVersion(3);
+		File stored = storage.store(walletFile, "account.json");
+
+		assertNotEquals(misnamed, stored);
+		assertEquals(ADDRESS_B, ObjectMapperFactory.getObjectMapper().readValue(misnamed, WalletFile.class).getAddress());
+		assertEquals(ADDRESS_A, storage.load(ADDRESS_A).getAddress());
+	}
+
+	private static void writeWalletFile(File file, String address) throws IOException {
+		WalletFile walletFile = new WalletFile();
+		walletFile.setAddress(address);
+		walletFile.setVersion(3);
+		file.getParentFile().mkdirs();
+		ObjectMapperFactory.getObjectMapper().writeValue(file, walletFile);
+	}
+}
@@ -5,6 +5,13 @@ package com.lambdaworks.crypto;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import static java.lang.System.arraycopy;
 
 /**
@@ -14,6 +21,9 @@ import static java.lang.System.arraycopy;
  * @author  Will Glozer
  */
 public class PBKDF {
+    private static final boolean jce_hmac = useJceHmac();
+    private static final boolean jce_hmac512 = "jce".equals(System.getProperty("com.lambdaworks.crypto.pbkdf2"));
+
     /**
      * Implementation of PBKDF2 (RFC2898).
      *
@@ -84,4 +94,413 @@ public class PBKDF {
             arraycopy(T, 0, DK, (i - 1) * hLen, (i == l ? r : hLen));
         }
     }
+
+    /**
+     * Implementation of PBKDF2 (RFC2898) with HMAC-SHA256. By default it doesn't go through
+     * JCE: the inner and outer HMAC states of the password are hashed once and the iterations
+     * work on the SHA-256 words without allocating. HotSpot compiles SHA-256 to CPU instructions,
+     * so there the JCE {@link Mac} is used instead. The system property
+     * {@code com.lambdaworks.crypto.pbkdf2} ({@code engine} or {@code jce}) overrides the choice.
+     *
+     * @param   P       Password.
+     * @param   S       Salt.
+     * @param   c       Iteration count.
+     * @param   dkLen   Intended length, in octets, of the derived key.
+     *
+     * @return  The derived key.
+     *
+     * @throws  GeneralSecurityException
+     */
+    public static byte[] pbkdf2HmacSHA256(byte[] P, byte[] S, int c, int dkLen) throws GeneralSecurityException {
+        byte[] DK = new byte[dkLen];
+        pbkdf2HmacSHA256(P, S, c, DK, dkLen, null);
+        return DK;
+    }
+
+    /**
+     * Implementation of PBKDF2 (RFC2898) with HMAC-SHA256 (see {@link #pbkdf2HmacSHA256(byte[], byte[], int, int)}).
+     * When dkLen is over 32 octets the blocks of the key are independent and, with an
+     * executor, blocks 2..l are computed on it while the calling thread computes block 1.
+     *
+     * @param   P       Password.
+     * @param   S       Salt.
+     * @param   c       Iteration count.
+     * @param   DK      Byte array that derived key will be placed in.
+     * @param   dkLen   Intended length, in octets, of the derived key.
+     * @param   executor Executor for the blocks of the key (null to compute them sequentially).
+     *
+     * @throws  GeneralSecurityException
+     */
+    public static void pbkdf2HmacSHA256(byte[] P, byte[] S, int c, final byte[] DK, final int dkLen, ExecutorService executor) throws GeneralSecurityException {
+        if (dkLen > (Math.pow(2, 32) - 1) * 32) {
+            throw new GeneralSecurityException("Requested key length too long");
+        }
+
+        Blocks hmac = blocks(P, S, c);
+        int l = (dkLen + 31) / 32;
+
+        if (executor == null || l == 1 || c == 1) {
+            for (int i = 1; i <= l; i++) {
+                hmac.block(i, DK, dkLen);
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(l - 1);
+        try {
+            for (int i = 2; i <= l; i++) {
+                final int block = i;
+                final Blocks worker = blocks(P, S, c);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        worker.block(block, DK, dkLen);
+                    }
+                }));
+            }
+            hmac.block(1, DK, dkLen);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for PBKDF2 blocks");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Implementation of PBKDF2 (RFC2898) with HMAC-SHA512, the BIP-39 seed function. The engine
+     * is the same as for {@link #pbkdf2HmacSHA256(byte[], byte[], int, int)}, on 64-bit words.
+     * With 128 byte blocks it is ahead of the JCE {@link Mac} on HotSpot as well, so JCE is only
+     * used when the system property {@code com.lambdaworks.crypto.pbkdf2} is {@code jce}.
+     *
+     * @param   P       Password.
+     * @param   S       Salt.
+     * @param   c       Iteration count.
+     * @param   dkLen   Intended length, in octets, of the derived key.
+     *
+     * @return  The derived key.
+     *
+     * @throws  GeneralSecurityException
+     */
+    public static byte[] pbkdf2HmacSHA512(byte[] P, byte[] S, int c, int dkLen) throws GeneralSecurityException {
+        if (dkLen > (Math.pow(2, 32) - 1) * 64) {
+            throw new GeneralSecurityException("Requested key length too long");
+        }
+
+        // JCE doesn't accept an empty key
+        Blocks hmac = jce_hmac512 && P.length > 0 ? new JceBlocks("HmacSHA512", P, S, c) : new HmacSHA512(P, S, c);
+        byte[] DK = new byte[dkLen];
+        int l = (dkLen + 63) / 64;
+
+        for (int i = 1; i <= l; i++) {
+            hmac.block(i, DK, dkLen);
+        }
+        return DK;
+    }
+
+    private static Blocks blocks(byte[] P, byte[] S, int c) throws GeneralSecurityException {
+        // JCE doesn't accept an empty key
+        return jce_hmac && P.length > 0 ? new JceBlocks("HmacSHA256", P, S, c) : new HmacSHA256(P, S, c);
+    }
+
+    private static boolean useJceHmac() {
+        String impl = System.getProperty("com.lambdaworks.crypto.pbkdf2");
+        if (impl != null) return "jce".equals(impl);
+
+        String vm = System.getProperty("java.vm.name", "");
+        return vm.contains("HotSpot") || vm.contains("OpenJDK");
+    }
+
+    /**
+     * Blocks T_i of a PBKDF2 key. An instance is used by one thread at a time.
+     */
+    private interface Blocks {
+        void block(int i, byte[] DK, int dkLen);
+    }
+
+    /**
+     * Blocks computed by the JCE {@link Mac}.
+     */
+    private static final class JceBlocks implements Blocks {
+        private final Mac mac;
+        private final byte[] S;
+        private final int c;
+        private final int hLen;
+
+        JceBlocks(String alg, byte[] P, byte[] S, int c) throws GeneralSecurityException {
+            this.mac = Mac.getInstance(alg);
+            this.mac.init(new SecretKeySpec(P, alg));
+            this.S = S;
+            this.c = c;
+            this.hLen = mac.getMacLength();
+        }
+
+        @Override
+        public void block(int i, byte[] DK, int dkLen) {
+            byte[] U = new byte[hLen];
+            byte[] T = new byte[hLen];
+
+            try {
+                mac.update(S);
+                mac.update((byte) (i >>> 24));
+                mac.update((byte) (i >>> 16));
+                mac.update((byte) (i >>> 8));
+                mac.update((byte) i);
+                mac.doFinal(U, 0);
+                arraycopy(U, 0, T, 0, hLen);
+
+                for (int j = 1; j < c; j++) {
+                    mac.update(U);
+                    mac.doFinal(U, 0);
+
+                    for (int k = 0; k < hLen; k++) {
+                        T[k] ^= U[k];
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                // the output buffer always fits
+                throw new IllegalStateException(e);
+            }
+
+            arraycopy(T, 0, DK, (i - 1) * hLen, Math.min(hLen, dkLen - (i - 1) * hLen));
+        }
+    }
+
+    /**
+     * HMAC-SHA256 states of a PBKDF2 derivation: the inner and outer states of the password,
+     * and the inner state after the full 64 byte blocks of the salt.
+     */
+    private static final class HmacSHA256 implements Blocks {
+        private static final int BLOCK = 64;
+        // padding of a 32 byte message after the 64 byte key block
+        private static final int PADDED_LENGTH = (BLOCK + 32) * 8;
+
+        private final int[] inner = new int[8];
+        private final int[] outer = new int[8];
+        private final int[] salted = new int[8];
+        private final byte[] saltTail;
+        private final long saltLength;
+        private final int c;
+
+        HmacSHA256(byte[] P, byte[] S, int c) {
+            int[] W = new int[64];
+            byte[] key = new byte[BLOCK];
+            int i, n;
+
+            if (P.length > BLOCK) {
+                int[] digest = SHA256.IV.clone();
+                n = SHA256.blocks(digest, P, 0, P.length, W);
+                SHA256.finish(digest, P, n, P.length - n, P.length, W);
+                for (i = 0; i < 8; i++) {
+                    key[i * 4 + 0] = (byte) (digest[i] >>> 24);
+                    key[i * 4 + 1] = (byte) (digest[i] >>> 16);
+                    key[i * 4 + 2] = (byte) (digest[i] >>> 8);
+                    key[i * 4 + 3] = (byte) (digest[i]);
+                }
+            } else {
+                arraycopy(P, 0, key, 0, P.length);
+            }
+
+            pad(inner, key, 0x36363636, W);
+            pad(outer, key, 0x5c5c5c5c, W);
+            Arrays.fill(key, (byte) 0);
+            Arrays.fill(W, 0);
+
+            arraycopy(inner, 0, salted, 0, 8);
+            n = SHA256.blocks(salted, S, 0, S.length, W);
+            saltTail = Arrays.copyOfRange(S, n, S.length);
+            saltLength = S.length;
+            this.c = c;
+        }
+
+        private static void pad(int[] state, byte[] key, int pad, int[] W) {
+            for (int i = 0; i < 16; i++) {
+                W[i] = SHA256.word(key, i * 4) ^ pad;
+            }
+            arraycopy(SHA256.IV, 0, state, 0, 8);
+            SHA256.compress(state, W);
+        }
+
+        /**
+         * Compute block i of the key: T_i = U_1 ^ U_2 ^ ... ^ U_c.
+         */
+        @Override
+        public void block(int i, byte[] DK, int dkLen) {
+            int[] W = new int[64];
+            int[] U = new int[8];
+            int[] T = new int[8];
+            int[] state = new int[8];
+            byte[] msg = Arrays.copyOf(saltTail, saltTail.length + 4);
+            int j, k, n;
+
+            // U_1 = PRF(P, S || INT(i))
+            msg[saltTail.length + 0] = (byte) (i >>> 24);
+            msg[saltTail.length + 1] = (byte) (i >>> 16);
+            msg[saltTail.length + 2] = (byte) (i >>> 8);
+            msg[saltTail.length + 3] = (byte) (i);
+
+            arraycopy(salted, 0, state, 0, 8);
+            n = SHA256.blocks(state, msg, 0, msg.length, W);
+            SHA256.finish(state, msg, n, msg.length - n, BLOCK + saltLength + 4, W);
+
+            // from here on every message is a 32 byte digest, W[8..15] hold its padding
+            W[8] = 0x80000000;
+            for (k = 9; k < 15; k++) {
+                W[k] = 0;
+            }
+            W[15] = PADDED_LENGTH;
+
+            outer(state, U, W);
+            arraycopy(U, 0, T, 0, 8);
+
+            // U_j = PRF(P, U_{j-1})
+            for (j = 1; j < c; j++) {
+                arraycopy(U, 0, W, 0, 8);
+                arraycopy(inner, 0, state, 0, 8);
+                SHA256.compress(state, W);
+                outer(state, U, W);
+
+                for (k = 0; k < 8; k++) {
+                    T[k] ^= U[k];
+                }
+            }
+
+            int off = (i - 1) * 32;
+            int len = Math.min(32, dkLen - off);
+            for (k = 0; k < len; k++) {
+                DK[off + k] = (byte) (T[k >> 2] >>> (24 - (k & 3) * 8));
+            }
+        }
+
+        /**
+         * Finish the HMAC: out = H(outer key block || digest). W[8..15] must hold the padding.
+         */
+        private void outer(int[] digest, int[] out, int[] W) {
+            arraycopy(digest, 0, W, 0, 8);
+            arraycopy(outer, 0, out, 0, 8);
+            SHA256.compress(out, W);
+        }
+    }
+
+    /**
+     * HMAC-SHA512 states of a PBKDF2 derivation, as {@link HmacSHA256} on 64-bit words.
+     */
+    private static final class HmacSHA512 implements Blocks {
+        private static final int BLOCK = 128;
+        // padding of a 64 byte message after the 128 byte key block
+        private static final long PADDED_LENGTH = (BLOCK + 64) * 8;
+
+        private final long[] inner = new long[8];
+        private final long[] outer = new long[8];
+        private final long[] salted = new long[8];
+        private final byte[] saltTail;
+        private final long saltLength;
+        private final int c;
+
+        HmacSHA512(byte[] P, byte[] S, int c) {
+            long[] W = new long[80];
+            byte[] key = new byte[BLOCK];
+            int i, n;
+
+            if (P.length > BLOCK) {
+                long[] digest = SHA512.IV.clone();
+                n = SHA512.blocks(digest, P, 0, P.length, W);
+                SHA512.finish(digest, P, n, P.length - n, P.length, W);
+                for (i = 0; i < 64; i++) {
+                    key[i] = (byte) (digest[i >> 3] >>> (56 - (i & 7) * 8));
+                }
+            } else {
+                arraycopy(P, 0, key, 0, P.length);
+            }
+
+            pad(inner, key, 0x3636363636363636L, W);
+            pad(outer, key, 0x5c5c5c5c5c5c5c5cL, W);
+            Arrays.fill(key, (byte) 0);
+            Arrays.fill(W, 0);
+
+            arraycopy(inner, 0, salted, 0, 8);
+            n = SHA512.blocks(salted, S, 0, S.length, W);
+            saltTail = Arrays.copyOfRange(S, n, S.length);
+            saltLength = S.length;
+            this.c = c;
+        }
+
+        private static void pad(long[] state, byte[] key, long pad, long[] W) {
+            for (int i = 0; i < 16; i++) {
+                W[i] = SHA512.word(key, i * 8) ^ pad;
+            }
+            arraycopy(SHA512.IV, 0, state, 0, 8);
+            SHA512.compress(state, W);
+        }
+
+        /**
+         * Compute block i of the key: T_i = U_1 ^ U_2 ^ ... ^ U_c.
+         */
+        @Override
+        public void block(int i, byte[] DK, int dkLen) {
+            long[] W = new long[80];
+            long[] U = new long[8];
+            long[] T = new long[8];
+            long[] state = new long[8];
+            byte[] msg = Arrays.copyOf(saltTail, saltTail.length + 4);
+            int j, k, n;
+
+            // U_1 = PRF(P, S || INT(i))
+            msg[saltTail.length + 0] = (byte) (i >>> 24);
+            msg[saltTail.length + 1] = (byte) (i >>> 16);
+            msg[saltTail.length + 2] = (byte) (i >>> 8);
+            msg[saltTail.length + 3] = (byte) (i);
+
+            arraycopy(salted, 0, state, 0, 8);
+            n = SHA512.blocks(state, msg, 0, msg.length, W);
+            SHA512.finish(state, msg, n, msg.length - n, BLOCK + saltLength + 4, W);
+
+            // from here on every message is a 64 byte digest, W[8..15] hold its padding
+            W[8] = 0x8000000000000000L;
+            for (k = 9; k < 15; k++) {
+                W[k] = 0;
+            }
+            W[15] = PADDED_LENGTH;
+
+            outer(state, U, W);
+            arraycopy(U, 0, T, 0, 8);
+
+            // U_j = PRF(P, U_{j-1})
+            for (j = 1; j < c; j++) {
+                arraycopy(U, 0, W, 0, 8);
+                arraycopy(inner, 0, state, 0, 8);
+                SHA512.compress(state, W);
+                outer(state, U, W);
+
+                for (k = 0; k < 8; k++) {
+                    T[k] ^= U[k];
+                }
+            }
+
+            int off = (i - 1) * 64;
+            int len = Math.min(64, dkLen - off);
+            for (k = 0; k < len; k++) {
+                DK[off + k] = (byte) (T[k >> 3] >>> (56 - (k & 7) * 8));
+            }
+        }
+
+        /**
+         * Finish the HMAC: out = H(outer key block || digest). W[8..15] must hold the padding.
+         */
+        private void outer(long[] digest, long[] out, long[] W) {
+            arraycopy(digest, 0, W, 0, 8);
+            arraycopy(outer, 0, out, 0, 8);
+            SHA512.compress(out, W);
+        }
+    }
 }
@@ -4,9 +4,30 @@ package com.lambdaworks.crypto;
 
 import com.lambdaworks.jni.*;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import static java.lang.Integer.MAX_VALUE;
 import static java.lang.System.arraycopy;
@@ -16,16 +37,79 @@ import static java.lang.System.arraycopy;
  * key derivation function. This class will attempt to load a native library
  * containing the optimized C implementation from
  * <a href="http://www.tarsnap.com/scrypt.html">http://www.tarsnap.com/scrypt.html<a> and
- * fall back to the pure Java version if that fails.
+ * fall back to the pure Java version if that fails. The library is loaded on the first
+ * derivation, or in the background after {@link #preload}.
  *
  * @author  Will Glozer
  */
 public class SCrypt {
-    private static final boolean native_library_loaded;
+    private static final FutureTask<Boolean> native_library = new FutureTask<Boolean>(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+            LibraryLoader loader = LibraryLoaders.loader();
+            return loader.load("scrypt", true);
+        }
+    });
+
+    private static volatile SCryptBufferPool buffer_pool = new SCryptBufferPool(Runtime.getRuntime().maxMemory() / 8);
+    private static volatile Memory memory = Memory.HEAP;
+    private static volatile File mapped_buffer_dir;
+    private static volatile SMix smix_impl = loadSMix();
+
+    /**
+     * Placement of the V buffer (128 * r * N bytes) of the Java implementation.
+     */
+    public enum Memory {
+        /** Java heap, buffers are reused through the {@link SCryptBufferPool}. */
+        HEAP,
+        /** Direct {@link ByteBuffer} outside the Java heap. */
+        DIRECT,
+        /**
+         * Memory-mapped temporary file, pages can be written back to the disk under memory pressure.
+         * The file is readable only by its owner and deleted right after mapping, and the buffer
+         * is zeroed after use, but the pages written back before that (derived from the password)
+         * can stay in the free blocks of the disk. Use a folder on tmpfs or encrypted storage
+         * (see {@link #setMappedBufferDir(File)}) when that matters.
+         */
+        MAPPED
+    }
+
+    /**
+     * Start loading the native library on a background thread, so the first derivation
+     * doesn't wait for the library to be extracted and loaded.
+     */
+    public static void preload() {
+        if (native_library.isDone()) return;
+
+        Thread thread = new Thread(native_library, "scrypt-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-    static {
-        LibraryLoader loader = LibraryLoaders.loader();
-        native_library_loaded = loader.load("scrypt", true);
+    /**
+     * Load the native library unless it is already loaded or being loaded by {@link #preload},
+     * in which case wait for it. The native methods ({@link #scryptN}, {@link #scryptBatchN},
+     * {@link #scryptVariantN}) may be called only after this returned true.
+     *
+     * @return true if the native library was successfully loaded.
+     */
+    public static boolean isNativeLoaded() {
+        native_library.run();
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return native_library.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -45,12 +129,36 @@ public class SCrypt {
      * @throws GeneralSecurityException when HMAC_SHA256 is not available.
      */
     public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
-        return native_library_loaded ? scryptN(passwd, salt, N, r, p, dkLen) : scryptJ(passwd, salt, N, r, p, dkLen);
+        return isNativeLoaded() ? scryptN(passwd, salt, N, r, p, dkLen) : scryptJ(passwd, salt, N, r, p, dkLen);
+    }
+
+    /**
+     * Implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>.
+     * Calls the native implementation {@link #scryptN} when the native library was successfully
+     * loaded, otherwise calls {@link #scryptJ(byte[], byte[], int, int, int, int, ExecutorService)}
+     * which runs the p lanes concurrently.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param executor  Executor for the lanes of the Java implementation (null to run them sequentially).
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, ExecutorService executor) throws GeneralSecurityException {
+        return isNativeLoaded() ? scryptN(passwd, salt, N, r, p, dkLen) : scryptJ(passwd, salt, N, r, p, dkLen, executor);
     }
 
     /**
      * Native C implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a> using
      * the code from <a href="http://www.tarsnap.com/scrypt.html">http://www.tarsnap.com/scrypt.html<a>.
+     * On x86 the SMix step uses SSE2, or AVX2 (two lanes at once) when the CPU supports it, see
+     * {@link #getVariant}.
      *
      * @param passwd    Password.
      * @param salt      Salt.
@@ -63,8 +171,150 @@ public class SCrypt {
      */
     public static native byte[] scryptN(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen);
 
+    /**
+     * Implementation used by {@link #scrypt}: the native SMix variant picked for this CPU
+     * ("scalar", "sse2" or "avx2") when the native library is loaded, otherwise "java", or
+     * "java-" followed by the name of the installed {@link SMix} (e.g. "java-vector128").
+     *
+     * @return Name of the implementation.
+     */
+    public static String getVariant() {
+        if (isNativeLoaded()) return scryptVariantN();
+
+        SMix impl = smix_impl;
+        return impl != null ? "java-" + impl.name() : "java";
+    }
+
+    /**
+     * @return Name of the native SMix variant picked for this CPU.
+     */
+    public static native String scryptVariantN();
+
+    /**
+     * Memory used by one {@link #scrypt} call with the implementation picked for this CPU:
+     * 128 * r * N bytes for V and 128 * r * p bytes for B. The native AVX2 variant computes two
+     * lanes at once with a V buffer for each of them, so it needs 2 * 128 * r * N bytes for V when p > 1.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     *
+     * @return Memory cost (bytes).
+     */
+    public static long memoryCost(int N, int r, int p) {
+        long ways = p > 1 && isNativeLoaded() && "avx2".equals(scryptVariantN()) ? 2 : 1;
+        return ways * 128L * r * N + 128L * r * p;
+    }
+
+    /**
+     * Derive keys for many (password, salt) pairs with the same parameters. Calls the native
+     * implementation {@link #scryptBatchN} when the native library was successfully loaded,
+     * otherwise calls {@link #scryptBatchJ}. Up to threads * 128 * r * N bytes are used at once
+     * (twice as much with the native AVX2 variant, see {@link #memoryCost}).
+     *
+     * @param passwds   Passwords.
+     * @param salts     Salts (one per password).
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived keys.
+     * @param threads   Number of threads used for the items and their lanes.
+     *
+     * @return The derived keys in the order of the passwords.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[][] scryptBatch(byte[][] passwds, byte[][] salts, int N, int r, int p, int dkLen, int threads) throws GeneralSecurityException {
+        if (passwds.length != salts.length) throw new IllegalArgumentException("Number of passwords and salts differs");
+
+        return isNativeLoaded() ? scryptBatchN(passwds, salts, N, r, p, dkLen, threads) : scryptBatchJ(passwds, salts, N, r, p, dkLen, threads);
+    }
+
+    /**
+     * Native C implementation of the batch derivation: the items (and the lanes of an item when
+     * there are fewer items than threads) run on native threads, with one JNI call for the batch.
+     *
+     * @param passwds   Passwords.
+     * @param salts     Salts (one per password).
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived keys.
+     * @param threads   Number of native threads.
+     *
+     * @return The derived keys in the order of the passwords.
+     */
+    public static native byte[][] scryptBatchN(byte[][] passwds, byte[][] salts, int N, int r, int p, int dkLen, int threads);
+
+    /**
+     * Pure Java implementation of the batch derivation: the items run on a temporary pool of
+     * threads (a single item runs its lanes on the pool instead).
+     *
+     * @param passwds   Passwords.
+     * @param salts     Salts (one per password).
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived keys.
+     * @param threads   Number of threads.
+     *
+     * @return The derived keys in the order of the passwords.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[][] scryptBatchJ(final byte[][] passwds, final byte[][] salts, final int N, final int r, final int p, final int dkLen, int threads) throws GeneralSecurityException {
+        if (passwds.length != salts.length) throw new IllegalArgumentException("Number of passwords and salts differs");
+
+        checkParams(N, r, p);
+
+        byte[][] DK = new byte[passwds.length][];
+        int i;
+
+        if (threads <= 1 || (passwds.length <= 1 && p == 1)) {
+            for (i = 0; i < passwds.length; i++) {
+                DK[i] = scryptJ(passwds[i], salts[i], N, r, p, dkLen);
+            }
+            return DK;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(passwds.length, p)));
+        try {
+            if (passwds.length == 1) {
+                DK[0] = scryptJ(passwds[0], salts[0], N, r, p, dkLen, executor);
+                return DK;
+            }
+
+            List<Future<byte[]>> items = new ArrayList<Future<byte[]>>(passwds.length);
+            for (i = 0; i < passwds.length; i++) {
+                final int item = i;
+                items.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws GeneralSecurityException {
+                        return scryptJ(passwds[item], salts[item], N, r, p, dkLen);
+                    }
+                }));
+            }
+            for (i = 0; i < passwds.length; i++) {
+                DK[i] = items.get(i).get();
+            }
+            return DK;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for scrypt batch");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>.
+     * The V buffer is placed according to {@link #getMemory()}.
      *
      * @param passwd    Password.
      * @param salt      Salt.
@@ -78,71 +328,480 @@ public class SCrypt {
      * @throws GeneralSecurityException when HMAC_SHA256 is not available.
      */
     public static byte[] scryptJ(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException {
-        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+        return scryptJ(passwd, salt, N, r, p, dkLen, null, memory);
+    }
 
-        if (N > MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
-        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * with the V buffer placed in the given memory.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param memory    Placement of the V buffer.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptJ(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, Memory memory) throws GeneralSecurityException {
+        return scryptJ(passwd, salt, N, r, p, dkLen, null, memory);
+    }
+
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * using caller-provided work buffers, so consecutive derivations with the same parameters
+     * don't allocate the large V buffer again. The buffers are overwritten and not cleared.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param V         Work buffer of at least 32 * r * N words.
+     * @param XY        Work buffer of at least {@link #XYLength(int)} words.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptJ(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, int[] V, int[] XY) throws GeneralSecurityException {
+        checkParams(N, r, p);
 
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(passwd, "HmacSHA256"));
+        if (V.length < 32 * r * N) throw new IllegalArgumentException("V buffer is too small");
+        if (XY.length < XYLength(r)) throw new IllegalArgumentException("XY buffer is too small");
 
         byte[] DK = new byte[dkLen];
 
-        byte[] B  = new byte[128 * r * p];
-        byte[] XY = new byte[256 * r];
-        byte[] V  = new byte[128 * r * N];
+        byte[] B   = new byte[128 * r * p];
+        int[]  B32 = new int[32 * r * p];
         int i;
 
-        PBKDF.pbkdf2(mac, salt, 1, B, p * 128 * r);
+        PBKDF.pbkdf2HmacSHA256(passwd, salt, 1, B, p * 128 * r, null);
+
+        decode(B, 0, B32, 0, B32.length);
 
         for (i = 0; i < p; i++) {
-            smix(B, i * 128 * r, r, N, V, XY);
+            smixHeap(B32, i * 32 * r, r, N, V, XY);
         }
 
-        PBKDF.pbkdf2(mac, B, 1, DK, dkLen);
+        encode(B32, 0, B, 0, B32.length);
+
+        PBKDF.pbkdf2HmacSHA256(passwd, B, 1, DK, dkLen, null);
 
         return DK;
     }
 
-    public static void smix(byte[] B, int Bi, int r, int N, byte[] V, byte[] XY) {
-        int Xi = 0;
-        int Yi = 128 * r;
-        int i;
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * running the p lanes (SMix of each 128 * r byte block of B) concurrently. The first lane runs on
+     * the calling thread, the others are submitted to the executor. Every lane uses its own V buffer,
+     * so p * 128 * r * N bytes are allocated at once. The V buffers are placed according to
+     * {@link #getMemory()}.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param executor  Executor for the lanes (null to run them sequentially).
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptJ(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, ExecutorService executor) throws GeneralSecurityException {
+        return scryptJ(passwd, salt, N, r, p, dkLen, executor, memory);
+    }
 
-        arraycopy(B, Bi, XY, Xi, 128 * r);
+    /**
+     * Pure Java implementation of the <a href="http://www.tarsnap.com/scrypt/scrypt.pdf"/>scrypt KDF</a>
+     * running the p lanes concurrently (see {@link #scryptJ(byte[], byte[], int, int, int, int, ExecutorService)})
+     * with the V buffers placed in the given memory.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     * @param executor  Executor for the lanes (null to run them sequentially).
+     * @param memory    Placement of the V buffers.
+     *
+     * @return The derived key.
+     *
+     * @throws GeneralSecurityException when HMAC_SHA256 is not available.
+     */
+    public static byte[] scryptJ(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen, ExecutorService executor, Memory memory) throws GeneralSecurityException {
+        checkParams(N, r, p);
 
-        for (i = 0; i < N; i++) {
-            arraycopy(XY, Xi, V, i * (128 * r), 128 * r);
-            blockmix_salsa8(XY, Xi, Yi, r);
+        byte[] DK = new byte[dkLen];
+
+        byte[] B   = new byte[128 * r * p];
+        int[]  B32 = new int[32 * r * p];
+        int i;
+
+        PBKDF.pbkdf2HmacSHA256(passwd, salt, 1, B, p * 128 * r, null);
+
+        decode(B, 0, B32, 0, B32.length);
+
+        if (executor == null || p == 1) {
+            smix(B32, 0, p, r, N, memory);
+        } else {
+            List<Future<?>> lanes = new ArrayList<Future<?>>(p - 1);
+            try {
+                for (i = 1; i < p; i++) {
+                    lanes.add(executor.submit(new Lane(B32, i, r, N, memory)));
+                }
+                new Lane(B32, 0, r, N, memory).run();
+                for (Future<?> lane : lanes) {
+                    lane.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for scrypt lanes");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException(cause);
+            } finally {
+                for (Future<?> lane : lanes) {
+                    lane.cancel(true);
+                }
+            }
         }
 
-        for (i = 0; i < N; i++) {
-            int j = integerify(XY, Xi, r) & (N - 1);
-            blockxor(V, j * (128 * r), XY, Xi, 128 * r);
-            blockmix_salsa8(XY, Xi, Yi, r);
+        encode(B32, 0, B, 0, B32.length);
+
+        PBKDF.pbkdf2HmacSHA256(passwd, B, 1, DK, dkLen, null);
+
+        return DK;
+    }
+
+    /**
+     * SMix of one lane with its own work buffers.
+     */
+    private static final class Lane implements Runnable {
+        private final int[] B;
+        private final int lane;
+        private final int r;
+        private final int N;
+        private final Memory memory;
+
+        Lane(int[] B, int lane, int r, int N, Memory memory) {
+            this.B      = B;
+            this.lane   = lane;
+            this.r      = r;
+            this.N      = N;
+            this.memory = memory;
         }
 
-        arraycopy(XY, Xi, B, Bi, 128 * r);
+        @Override
+        public void run() {
+            smix(B, lane, lane + 1, r, N, memory);
+        }
     }
 
-    public static void blockmix_salsa8(byte[] BY, int Bi, int Yi, int r) {
-        byte[] X = new byte[64];
+    /**
+     * SMix of the lanes [from, to) of B sharing one V buffer placed in the given memory.
+     */
+    private static void smix(int[] B, int from, int to, int r, int N, Memory memory) {
+        int[] XY = new int[XYLength(r)];
         int i;
 
-        arraycopy(BY, Bi + (2 * r - 1) * 64, X, 0, 64);
+        if (memory == Memory.HEAP) {
+            int[] V = acquireV(N, r);
+            try {
+                for (i = from; i < to; i++) {
+                    smixHeap(B, i * 32 * r, r, N, V, XY);
+                }
+            } finally {
+                releaseV(N, r, V);
+            }
+        } else {
+            IntBuffer V = allocateOffHeap(N, r, memory);
+            try {
+                for (i = from; i < to; i++) {
+                    smix(B, i * 32 * r, r, N, V, XY);
+                }
+            } finally {
+                wipe(V);
+            }
+        }
+    }
 
-        for (i = 0; i < 2 * r; i++) {
-            blockxor(BY, i * 64, X, 0, 64);
-            salsa20_8(X);
-            arraycopy(X, 0, BY, Yi + (i * 64), 64);
+    /**
+     * Set the pool of the V buffers used by the Java implementation. By default the pool
+     * keeps up to 1/8 of the max heap size.
+     *
+     * @param pool      Buffer pool (null to allocate a new buffer for every derivation).
+     */
+    public static void setBufferPool(SCryptBufferPool pool) {
+        buffer_pool = pool;
+    }
+
+    /**
+     * @return Pool of the V buffers used by the Java implementation (null if disabled).
+     */
+    public static SCryptBufferPool getBufferPool() {
+        return buffer_pool;
+    }
+
+    /**
+     * Set the default placement of the V buffers of the Java implementation
+     * ({@link Memory#HEAP} by default).
+     *
+     * @param memory    Placement of the V buffers.
+     */
+    public static void setMemory(Memory memory) {
+        if (memory == null) throw new IllegalArgumentException("memory is null");
+        SCrypt.memory = memory;
+    }
+
+    /**
+     * @return Default placement of the V buffers of the Java implementation.
+     */
+    public static Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Set the folder of the temporary files backing the {@link Memory#MAPPED} buffers
+     * (java.io.tmpdir by default). Pages of the buffers can be written back to this folder's disk.
+     *
+     * @param dir       Folder for the temporary files.
+     */
+    public static void setMappedBufferDir(File dir) {
+        mapped_buffer_dir = dir;
+    }
+
+    /**
+     * Set the SMix implementation used by the Java implementation for the heap buffers.
+     * By default the Vector API implementation is used when it is on the classpath and the
+     * JVM supports it (unless the system property {@code com.lambdaworks.crypto.vector} is
+     * {@code false}), otherwise the scalar code of this class.
+     *
+     * @param impl      SMix implementation (null for the scalar code).
+     */
+    public static void setSMix(SMix impl) {
+        smix_impl = impl;
+    }
+
+    /**
+     * @return SMix implementation used for the heap buffers (null for the scalar code).
+     */
+    public static SMix getSMix() {
+        return smix_impl;
+    }
+
+    private static SMix loadSMix() {
+        if ("false".equals(System.getProperty("com.lambdaworks.crypto.vector"))) return null;
+
+        try {
+            return (SMix) Class.forName("com.lambdaworks.crypto.vector.VectorSMix").getConstructor().newInstance();
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            // jdk.incubator.vector is not available
+            return null;
+        }
+    }
+
+    private static void smixHeap(int[] B, int Bi, int r, int N, int[] V, int[] XY) {
+        SMix impl = smix_impl;
+        if (impl != null) {
+            impl.smix(B, Bi, r, N, V, XY);
+        } else {
+            smix(B, Bi, r, N, V, XY);
+        }
+    }
+
+    private static int[] acquireV(int N, int r) {
+        SCryptBufferPool pool = buffer_pool;
+        return pool != null ? pool.acquire(N, r) : new int[32 * r * N];
+    }
+
+    private static void releaseV(int N, int r, int[] V) {
+        SCryptBufferPool pool = buffer_pool;
+        if (pool != null) pool.release(N, r, V);
+    }
+
+    /**
+     * Allocate the V buffer outside the Java heap. The memory is released when the buffer
+     * is collected; the temporary file of a mapped buffer is created owner-only and deleted
+     * right after mapping. The buffer must be {@link #wipe(IntBuffer) wiped} after use.
+     */
+    private static IntBuffer allocateOffHeap(int N, int r, Memory memory) {
+        int size = 128 * r * N;
+
+        if (memory == Memory.DIRECT) {
+            return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+
+        File file = null;
+        RandomAccessFile raf = null;
+        try {
+            file = createPrivateTempFile(mapped_buffer_dir);
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.nativeOrder()).asIntBuffer();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't map scrypt buffer", e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // mapping stays valid
+                }
+            }
+            if (file != null) file.delete();
+        }
+    }
+
+    /**
+     * Create a temporary file readable and writable only by its owner: with the permissions
+     * set on creation where the file system supports POSIX permissions, otherwise restricted
+     * right after creation.
+     */
+    private static File createPrivateTempFile(File dir) throws IOException {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            FileAttribute<Set<PosixFilePermission>> owner = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+            Path path = dir != null ? Files.createTempFile(dir.toPath(), "scrypt", ".tmp", owner) : Files.createTempFile("scrypt", ".tmp", owner);
+            return path.toFile();
+        }
+
+        File file = File.createTempFile("scrypt", ".tmp", dir);
+        if (!file.setReadable(false, false) || !file.setReadable(true, true)
+                || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+            file.delete();
+            throw new IOException("Can't restrict access to " + file.getName());
+        }
+        return file;
+    }
+
+    /**
+     * Zero an off-heap V buffer, it isn't cleared when it is released.
+     */
+    private static void wipe(IntBuffer V) {
+        int[] zeros = new int[Math.min(V.capacity(), 4096)];
+
+        V.clear();
+        while (V.hasRemaining()) {
+            V.put(zeros, 0, Math.min(V.remaining(), zeros.length));
+        }
+    }
+
+    /**
+     * Length (in words) of the XY work buffer for the memory cost parameter.
+     *
+     * @param r         Memory cost parameter.
+     *
+     * @return Length of the XY buffer.
+     */
+    public static int XYLength(int r) {
+        return 64 * r + 16;
+    }
+
+    static void checkParams(int N, int r, int p) {
+        if (N < 2 || (N & (N - 1)) != 0) throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+
+        if (N > MAX_VALUE / 128 / r) throw new IllegalArgumentException("Parameter N is too large");
+        if (r > MAX_VALUE / 128 / p) throw new IllegalArgumentException("Parameter r is too large");
+    }
+
+    /**
+     * SMix of one 128 * r byte block of B, kept as little-endian words.
+     * X and Y blocks of XY swap roles after every BlockMix, so no block is copied back.
+     */
+    public static void smix(int[] B, int Bi, int r, int N, int[] V, int[] XY) {
+        int len = 32 * r;
+        int Xi = 0;
+        int Yi = len;
+        int Ti = 2 * len;
+        int i, j;
+
+        arraycopy(B, Bi, XY, Xi, len);
+
+        for (i = 0; i < N; i += 2) {
+            arraycopy(XY, Xi, V, i * len, len);
+            blockmix_salsa8(XY, Xi, Yi, Ti, r);
+            arraycopy(XY, Yi, V, (i + 1) * len, len);
+            blockmix_salsa8(XY, Yi, Xi, Ti, r);
         }
 
-        for (i = 0; i < r; i++) {
-            arraycopy(BY, Yi + (i * 2) * 64, BY, Bi + (i * 64), 64);
+        for (i = 0; i < N; i += 2) {
+            j = integerify(XY, Xi, r) & (N - 1);
+            blockxor(V, j * len, XY, Xi, len);
+            blockmix_salsa8(XY, Xi, Yi, Ti, r);
+
+            j = integerify(XY, Yi, r) & (N - 1);
+            blockxor(V, j * len, XY, Yi, len);
+            blockmix_salsa8(XY, Yi, Xi, Ti, r);
         }
 
-        for (i = 0; i < r; i++) {
-            arraycopy(BY, Yi + (i * 2 + 1) * 64, BY, Bi + (i + r) * 64, 64);
+        arraycopy(XY, Xi, B, Bi, len);
+    }
+
+    /**
+     * SMix of one 128 * r byte block of B with the V buffer outside the Java heap
+     * (see {@link #smix(int[], int, int, int, int[], int[])}).
+     */
+    public static void smix(int[] B, int Bi, int r, int N, IntBuffer V, int[] XY) {
+        int len = 32 * r;
+        int Xi = 0;
+        int Yi = len;
+        int Ti = 2 * len;
+        int[] T = new int[len];
+        int i, j;
+
+        arraycopy(B, Bi, XY, Xi, len);
+
+        V.clear();
+        for (i = 0; i < N; i += 2) {
+            V.put(XY, Xi, len);
+            blockmix_salsa8(XY, Xi, Yi, Ti, r);
+            V.put(XY, Yi, len);
+            blockmix_salsa8(XY, Yi, Xi, Ti, r);
+        }
+
+        for (i = 0; i < N; i += 2) {
+            j = integerify(XY, Xi, r) & (N - 1);
+            V.position(j * len);
+            V.get(T, 0, len);
+            blockxor(T, 0, XY, Xi, len);
+            blockmix_salsa8(XY, Xi, Yi, Ti, r);
+
+            j = integerify(XY, Yi, r) & (N - 1);
+            V.position(j * len);
+            V.get(T, 0, len);
+            blockxor(T, 0, XY, Yi, len);
+            blockmix_salsa8(XY, Yi, Xi, Ti, r);
+        }
+
+        arraycopy(XY, Xi, B, Bi, len);
+        Arrays.fill(T, 0);
+    }
+
+    /**
+     * BlockMix of the block at Bi into the block at Yi (already in the shuffled order:
+     * even sub-blocks first, then odd ones). 16 words at Ti are used as the working block.
+     */
+    public static void blockmix_salsa8(int[] BY, int Bi, int Yi, int Ti, int r) {
+        int i;
+
+        arraycopy(BY, Bi + (2 * r - 1) * 16, BY, Ti, 16);
+
+        for (i = 0; i < 2 * r; i++) {
+            blockxor(BY, Bi + i * 16, BY, Ti, 16);
+            salsa20_8(BY, Ti);
+            arraycopy(BY, Ti, BY, Yi + ((i >> 1) + (i & 1) * r) * 16, 16);
         }
     }
 
@@ -150,65 +809,141 @@ public class SCrypt {
         return (a << b) | (a >>> (32 - b));
     }
 
-    public static void salsa20_8(byte[] B) {
-        int[] B32 = new int[16];
-        int[] x   = new int[16];
+    public static void salsa20_8(int[] B, int Bi) {
+        int x0  = B[Bi +  0], x1  = B[Bi +  1], x2  = B[Bi +  2], x3  = B[Bi +  3];
+        int x4  = B[Bi +  4], x5  = B[Bi +  5], x6  = B[Bi +  6], x7  = B[Bi +  7];
+        int x8  = B[Bi +  8], x9  = B[Bi +  9], x10 = B[Bi + 10], x11 = B[Bi + 11];
+        int x12 = B[Bi + 12], x13 = B[Bi + 13], x14 = B[Bi + 14], x15 = B[Bi + 15];
         int i;
 
-        for (i = 0; i < 16; i++) {
-            B32[i]  = (B[i * 4 + 0] & 0xff) << 0;
-            B32[i] |= (B[i * 4 + 1] & 0xff) << 8;
-            B32[i] |= (B[i * 4 + 2] & 0xff) << 16;
-            B32[i] |= (B[i * 4 + 3] & 0xff) << 24;
+        for (i = 8; i > 0; i -= 2) {
+            x4  ^= R(x0 +x12, 7);  x8  ^= R(x4 +x0 , 9);
+            x12 ^= R(x8 +x4 ,13);  x0  ^= R(x12+x8 ,18);
+            x9  ^= R(x5 +x1 , 7);  x13 ^= R(x9 +x5 , 9);
+            x1  ^= R(x13+x9 ,13);  x5  ^= R(x1 +x13,18);
+            x14 ^= R(x10+x6 , 7);  x2  ^= R(x14+x10, 9);
+            x6  ^= R(x2 +x14,13);  x10 ^= R(x6 +x2 ,18);
+            x3  ^= R(x15+x11, 7);  x7  ^= R(x3 +x15, 9);
+            x11 ^= R(x7 +x3 ,13);  x15 ^= R(x11+x7 ,18);
+            x1  ^= R(x0 +x3 , 7);  x2  ^= R(x1 +x0 , 9);
+            x3  ^= R(x2 +x1 ,13);  x0  ^= R(x3 +x2 ,18);
+            x6  ^= R(x5 +x4 , 7);  x7  ^= R(x6 +x5 , 9);
+            x4  ^= R(x7 +x6 ,13);  x5  ^= R(x4 +x7 ,18);
+            x11 ^= R(x10+x9 , 7);  x8  ^= R(x11+x10, 9);
+            x9  ^= R(x8 +x11,13);  x10 ^= R(x9 +x8 ,18);
+            x12 ^= R(x15+x14, 7);  x13 ^= R(x12+x15, 9);
+            x14 ^= R(x13+x12,13);  x15 ^= R(x14+x13,18);
         }
 
-        arraycopy(B32, 0, x, 0, 16);
+        B[Bi +  0] += x0;  B[Bi +  1] += x1;  B[Bi +  2] += x2;  B[Bi +  3] += x3;
+        B[Bi +  4] += x4;  B[Bi +  5] += x5;  B[Bi +  6] += x6;  B[Bi +  7] += x7;
+        B[Bi +  8] += x8;  B[Bi +  9] += x9;  B[Bi + 10] += x10; B[Bi + 11] += x11;
+        B[Bi + 12] += x12; B[Bi + 13] += x13; B[Bi + 14] += x14; B[Bi + 15] += x15;
+    }
 
-        for (i = 8; i > 0; i -= 2) {
-            x[ 4] ^= R(x[ 0]+x[12], 7);  x[ 8] ^= R(x[ 4]+x[ 0], 9);
-            x[12] ^= R(x[ 8]+x[ 4],13);  x[ 0] ^= R(x[12]+x[ 8],18);
-            x[ 9] ^= R(x[ 5]+x[ 1], 7);  x[13] ^= R(x[ 9]+x[ 5], 9);
-            x[ 1] ^= R(x[13]+x[ 9],13);  x[ 5] ^= R(x[ 1]+x[13],18);
-            x[14] ^= R(x[10]+x[ 6], 7);  x[ 2] ^= R(x[14]+x[10], 9);
-            x[ 6] ^= R(x[ 2]+x[14],13);  x[10] ^= R(x[ 6]+x[ 2],18);
-            x[ 3] ^= R(x[15]+x[11], 7);  x[ 7] ^= R(x[ 3]+x[15], 9);
-            x[11] ^= R(x[ 7]+x[ 3],13);  x[15] ^= R(x[11]+x[ 7],18);
-            x[ 1] ^= R(x[ 0]+x[ 3], 7);  x[ 2] ^= R(x[ 1]+x[ 0], 9);
-            x[ 3] ^= R(x[ 2]+x[ 1],13);  x[ 0] ^= R(x[ 3]+x[ 2],18);
-            x[ 6] ^= R(x[ 5]+x[ 4], 7);  x[ 7] ^= R(x[ 6]+x[ 5], 9);
-            x[ 4] ^= R(x[ 7]+x[ 6],13);  x[ 5] ^= R(x[ 4]+x[ 7],18);
-            x[11] ^= R(x[10]+x[ 9], 7);  x[ 8] ^= R(x[11]+x[10], 9);
-            x[ 9] ^= R(x[ 8]+x[11],13);  x[10] ^= R(x[ 9]+x[ 8],18);
-            x[12] ^= R(x[15]+x[14], 7);  x[13] ^= R(x[12]+x[15], 9);
-            x[14] ^= R(x[13]+x[12],13);  x[15] ^= R(x[14]+x[13],18);
-        }
-
-        for (i = 0; i < 16; ++i) B32[i] = x[i] + B32[i];
-
-        for (i = 0; i < 16; i++) {
-            B[i * 4 + 0] = (byte) (B32[i] >> 0  & 0xff);
-            B[i * 4 + 1] = (byte) (B32[i] >> 8  & 0xff);
-            B[i * 4 + 2] = (byte) (B32[i] >> 16 & 0xff);
-            B[i * 4 + 3] = (byte) (B32[i] >> 24 & 0xff);
+    public static void blockxor(int[] S, int Si, int[] D, int Di, int len) {
+        for (int i = 0; i < len; i++) {
+            D[Di + i] ^= S[Si + i];
         }
     }
 
+    public static int integerify(int[] B, int Bi, int r) {
+        return B[Bi + (2 * r - 1) * 16];
+    }
+
+    /**
+     * SMix of one 128 * r byte block of B.
+     *
+     * @deprecated Use {@link #smix(int[], int, int, int, int[], int[])}, V and XY are not used.
+     */
+    @Deprecated
+    public static void smix(byte[] B, int Bi, int r, int N, byte[] V, byte[] XY) {
+        int len = 32 * r;
+        int[] B32 = new int[len];
+        int[] V32 = new int[len * N];
+        int[] XY32 = new int[XYLength(r)];
+
+        decode(B, Bi, B32, 0, len);
+        smix(B32, 0, r, N, V32, XY32);
+        encode(B32, 0, B, Bi, len);
+
+        Arrays.fill(B32, 0);
+        Arrays.fill(V32, 0);
+        Arrays.fill(XY32, 0);
+    }
+
+    /**
+     * BlockMix of the 128 * r byte block at Bi in place, Yi is not used.
+     *
+     * @deprecated Use {@link #blockmix_salsa8(int[], int, int, int, int)}.
+     */
+    @Deprecated
+    public static void blockmix_salsa8(byte[] BY, int Bi, int Yi, int r) {
+        int len = 32 * r;
+        int[] XY32 = new int[XYLength(r)];
+
+        decode(BY, Bi, XY32, 0, len);
+        blockmix_salsa8(XY32, 0, len, 2 * len, r);
+        encode(XY32, len, BY, Bi, len);
+
+        Arrays.fill(XY32, 0);
+    }
+
+    /**
+     * Salsa20/8 core of the 64 byte block B in place.
+     *
+     * @deprecated Use {@link #salsa20_8(int[], int)}.
+     */
+    @Deprecated
+    public static void salsa20_8(byte[] B) {
+        int[] B32 = new int[16];
+
+        decode(B, 0, B32, 0, 16);
+        salsa20_8(B32, 0);
+        encode(B32, 0, B, 0, 16);
+
+        Arrays.fill(B32, 0);
+    }
+
+    /**
+     * @deprecated Use {@link #blockxor(int[], int, int[], int, int)}.
+     */
+    @Deprecated
     public static void blockxor(byte[] S, int Si, byte[] D, int Di, int len) {
         for (int i = 0; i < len; i++) {
             D[Di + i] ^= S[Si + i];
         }
     }
 
+    /**
+     * @deprecated Use {@link #integerify(int[], int, int)}.
+     */
+    @Deprecated
     public static int integerify(byte[] B, int Bi, int r) {
-        int n;
+        int[] n = new int[1];
 
-        Bi += (2 * r - 1) * 64;
+        decode(B, Bi + (2 * r - 1) * 64, n, 0, 1);
 
-        n  = (B[Bi + 0] & 0xff) << 0;
-        n |= (B[Bi + 1] & 0xff) << 8;
-        n |= (B[Bi + 2] & 0xff) << 16;
-        n |= (B[Bi + 3] & 0xff) << 24;
+        return n[0];
+    }
 
-        return n;
+    static void decode(byte[] B, int Bi, int[] B32, int B32i, int len) {
+        for (int i = 0; i < len; i++) {
+            int b = Bi + i * 4;
+            B32[B32i + i]  = (B[b + 0] & 0xff) << 0;
+            B32[B32i + i] |= (B[b + 1] & 0xff) << 8;
+            B32[B32i + i] |= (B[b + 2] & 0xff) << 16;
+            B32[B32i + i] |= (B[b + 3] & 0xff) << 24;
+        }
+    }
+
+    static void encode(int[] B32, int B32i, byte[] B, int Bi, int len) {
+        for (int i = 0; i < len; i++) {
+            int b = Bi + i * 4;
+            B[b + 0] = (byte) (B32[B32i + i] >> 0  & 0xff);
+            B[b + 1] = (byte) (B32[B32i + i] >> 8  & 0xff);
+            B[b + 2] = (byte) (B32[B32i + i] >> 16 & 0xff);
+            B[b + 3] = (byte) (B32[B32i + i] >> 24 & 0xff);
+        }
     }
 }
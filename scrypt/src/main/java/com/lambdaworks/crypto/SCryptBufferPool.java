@@ -0,0 +1,106 @@
+package com.lambdaworks.crypto;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of the scrypt V buffers (32 * r * N words), keyed by (N, r) and bounded in total size,
+ * so repeated key derivations with the same parameters reuse the buffer instead of allocating
+ * 128 * r * N bytes every time. Buffers are zeroed when they are returned to the pool, so
+ * {@link #acquire(int, int)} always hands out zeroed buffers. When the pool is full the buffers
+ * of the least recently used parameters are dropped first.
+ */
+public class SCryptBufferPool {
+    private final long maxBytes;
+    private final Map<Long, ArrayDeque<int[]>> buffers = new LinkedHashMap<Long, ArrayDeque<int[]>>(16, 0.75f, true);
+    private long pooledBytes;
+
+    /**
+     * @param maxBytes  Maximum total size of the pooled buffers (bytes).
+     */
+    public SCryptBufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Take a V buffer for the parameters from the pool or allocate a new one.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     *
+     * @return Zeroed buffer of 32 * r * N words.
+     */
+    public int[] acquire(int N, int r) {
+        synchronized (this) {
+            ArrayDeque<int[]> free = buffers.get(key(N, r));
+            if (free != null && !free.isEmpty()) {
+                int[] V = free.pop();
+                pooledBytes -= bytes(V);
+                return V;
+            }
+        }
+        return new int[32 * r * N];
+    }
+
+    /**
+     * Return the V buffer to the pool after the derivation. The buffer is zeroed first
+     * (it holds key material) and then dropped if it doesn't fit into the pool.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param V         Buffer taken by {@link #acquire(int, int)}.
+     */
+    public void release(int N, int r, int[] V) {
+        Arrays.fill(V, 0);
+
+        long size = bytes(V);
+        if (size > maxBytes) return;
+
+        synchronized (this) {
+            Long key = key(N, r);
+            Iterator<Map.Entry<Long, ArrayDeque<int[]>>> eldest = buffers.entrySet().iterator();
+            while (pooledBytes + size > maxBytes && eldest.hasNext()) {
+                Map.Entry<Long, ArrayDeque<int[]>> entry = eldest.next();
+                ArrayDeque<int[]> free = entry.getValue();
+                while (pooledBytes + size > maxBytes && !free.isEmpty()) {
+                    pooledBytes -= bytes(free.removeLast());
+                }
+                if (free.isEmpty()) eldest.remove();
+            }
+
+            ArrayDeque<int[]> free = buffers.get(key);
+            if (free == null) {
+                free = new ArrayDeque<int[]>();
+                buffers.put(key, free);
+            }
+            free.push(V);
+            pooledBytes += size;
+        }
+    }
+
+    /**
+     * @return Total size of the pooled buffers (bytes).
+     */
+    public synchronized long pooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Drop all pooled buffers.
+     */
+    public synchronized void clear() {
+        buffers.clear();
+        pooledBytes = 0;
+    }
+
+    private static Long key(int N, int r) {
+        return ((long) N << 32) | (r & 0xffffffffL);
+    }
+
+    private static long bytes(int[] V) {
+        return 4L * V.length;
+    }
+}
@@ -0,0 +1,185 @@
+package com.lambdaworks.crypto;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admission-controlled scheduler of {@link SCrypt#scrypt} derivations. Every request costs
+ * {@link SCrypt#memoryCost} bytes of memory (128 * r * N + 128 * r * p, V is doubled by the native
+ * AVX2 variant); requests run on the executor while their total cost
+ * fits into the memory budget, the rest waits in a FIFO queue. The queue is strictly fair: a big
+ * request at the head is not overtaken by smaller ones behind it. A request which is bigger than
+ * the whole budget runs alone.
+ *
+ * The executor should have at least as many threads as the number of derivations the budget
+ * allows to run at once, otherwise admitted requests wait in the executor queue.
+ */
+public class SCryptScheduler {
+    private final Executor executor;
+    private final long memoryBudget;
+
+    private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+    private long memoryInUse;
+    private int running;
+
+    private long started;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * @param executor      Executor running the derivations.
+     * @param memoryBudget  Memory available for the concurrent derivations (bytes).
+     */
+    public SCryptScheduler(Executor executor, long memoryBudget) {
+        if (memoryBudget <= 0) throw new IllegalArgumentException("Memory budget must be positive");
+
+        this.executor = executor;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Queue the derivation.
+     *
+     * @param passwd    Password.
+     * @param salt      Salt.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param dkLen     Intended length of the derived key.
+     *
+     * @return Future of the derived key.
+     */
+    public Future<byte[]> submit(final byte[] passwd, final byte[] salt, final int N, final int r, final int p, final int dkLen) {
+        SCrypt.checkParams(N, r, p);
+
+        Request request = new Request(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return SCrypt.scrypt(passwd, salt, N, r, p, dkLen);
+            }
+        }, Math.min(cost(N, r, p), memoryBudget));
+
+        synchronized (this) {
+            queue.add(request);
+        }
+        dispatch();
+        return request;
+    }
+
+    /**
+     * Memory used by one derivation, see {@link SCrypt#memoryCost}.
+     *
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     *
+     * @return Memory cost (bytes).
+     */
+    public static long cost(int N, int r, int p) {
+        return SCrypt.memoryCost(N, r, p);
+    }
+
+    /**
+     * @return Number of the requests waiting for the memory.
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return Number of the running derivations.
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * @return Memory used by the running derivations (bytes).
+     */
+    public synchronized long getMemoryInUse() {
+        return memoryInUse;
+    }
+
+    /**
+     * @return Average time the started requests waited in the queue (milliseconds).
+     */
+    public synchronized long getAverageWaitMillis() {
+        return started == 0 ? 0 : totalWaitNanos / started / 1000000;
+    }
+
+    /**
+     * @return Longest time a started request waited in the queue (milliseconds).
+     */
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitNanos / 1000000;
+    }
+
+    /**
+     * Start the requests from the head of the queue while they fit into the budget.
+     */
+    private void dispatch() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                request = queue.peek();
+                if (request == null) return;
+
+                if (request.isCancelled()) {
+                    queue.poll();
+                    continue;
+                }
+                if (memoryInUse > 0 && memoryInUse + request.cost > memoryBudget) return;
+
+                long wait = System.nanoTime() - request.queued;
+                totalWaitNanos += wait;
+                maxWaitNanos = Math.max(maxWaitNanos, wait);
+                started++;
+                memoryInUse += request.cost;
+                running++;
+                queue.poll();
+            }
+
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                request.reject(e);
+            }
+        }
+    }
+
+    private void release(long cost) {
+        synchronized (this) {
+            memoryInUse -= cost;
+            running--;
+        }
+        dispatch();
+    }
+
+    private final class Request extends FutureTask<byte[]> {
+        private final long cost;
+        private final long queued = System.nanoTime();
+
+        Request(Callable<byte[]> callable, long cost) {
+            super(callable);
+            this.cost = cost;
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                release(cost);
+            }
+        }
+
+        void reject(RejectedExecutionException e) {
+            setException(e);
+            release(cost);
+        }
+    }
+}
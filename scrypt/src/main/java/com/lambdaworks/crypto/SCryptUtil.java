@@ -5,6 +5,7 @@ package com.lambdaworks.crypto;
 import java.io.UnsupportedEncodingException;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
 
 import static com.lambdaworks.codec.Base64.*;
 
@@ -40,11 +41,27 @@ public class SCryptUtil {
      * @return The hashed password.
      */
     public static String scrypt(String passwd, int N, int r, int p) {
+        return scrypt(passwd, N, r, p, null);
+    }
+
+    /**
+     * Hash the supplied plaintext password and generate output in the format described
+     * in {@link SCryptUtil}, running the p lanes of the Java implementation concurrently.
+     *
+     * @param passwd    Password.
+     * @param N         CPU cost parameter.
+     * @param r         Memory cost parameter.
+     * @param p         Parallelization parameter.
+     * @param executor  Executor for the scrypt lanes (null to run them sequentially).
+     *
+     * @return The hashed password.
+     */
+    public static String scrypt(String passwd, int N, int r, int p, ExecutorService executor) {
         try {
             byte[] salt = new byte[16];
             SecureRandom.getInstance("SHA1PRNG").nextBytes(salt);
 
-            byte[] derived = SCrypt.scrypt(passwd.getBytes("UTF-8"), salt, N, r, p, 32);
+            byte[] derived = SCrypt.scrypt(passwd.getBytes("UTF-8"), salt, N, r, p, 32, executor);
 
             String params = Long.toString(log2(N) << 16L | r << 8 | p, 16);
 
@@ -70,6 +87,20 @@ public class SCryptUtil {
      * @return true if passwd matches hashed value.
      */
     public static boolean check(String passwd, String hashed) {
+        return check(passwd, hashed, null);
+    }
+
+    /**
+     * Compare the supplied plaintext password to a hashed password, running the p lanes
+     * of the Java implementation concurrently.
+     *
+     * @param   passwd      Plaintext password.
+     * @param   hashed      scrypt hashed password.
+     * @param   executor    Executor for the scrypt lanes (null to run them sequentially).
+     *
+     * @return true if passwd matches hashed value.
+     */
+    public static boolean check(String passwd, String hashed, ExecutorService executor) {
         try {
             String[] parts = hashed.split("\\$");
 
@@ -85,7 +116,7 @@ public class SCryptUtil {
             int r = (int) params >> 8 & 0xff;
             int p = (int) params      & 0xff;
 
-            byte[] derived1 = SCrypt.scrypt(passwd.getBytes("UTF-8"), salt, N, r, p, 32);
+            byte[] derived1 = SCrypt.scrypt(passwd.getBytes("UTF-8"), salt, N, r, p, 32, executor);
 
             if (derived0.length != derived1.length) return false;
 
@@ -0,0 +1,123 @@
+package com.lambdaworks.crypto;
+
+/**
+ * SHA-256 (FIPS 180-4) on big-endian words, for the HMAC states of
+ * {@link PBKDF#pbkdf2HmacSHA256}.
+ */
+final class SHA256 {
+    static final int[] IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private SHA256() {
+    }
+
+    /**
+     * Hash one 64 byte block into the state.
+     *
+     * @param state     8 words of the hash state.
+     * @param W         Block in W[0..15]; W must have 64 words, W[16..63] are overwritten.
+     */
+    static void compress(int[] state, int[] W) {
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        int t, t1, t2, w2, w15;
+
+        for (t = 16; t < 64; t++) {
+            w2  = W[t - 2];
+            w15 = W[t - 15];
+            W[t] = W[t - 16] + W[t - 7]
+                 + (Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3))
+                 + (Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10));
+        }
+
+        for (t = 0; t < 64; t++) {
+            t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                   + ((e & f) ^ (~e & g)) + K[t] + W[t];
+            t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                   + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        state[0] += a; state[1] += b; state[2] += c; state[3] += d;
+        state[4] += e; state[5] += f; state[6] += g; state[7] += h;
+    }
+
+    /**
+     * Hash the full 64 byte blocks of data into the state.
+     *
+     * @param state     8 words of the hash state.
+     * @param data      Data.
+     * @param off       Offset of the data.
+     * @param len       Length of the data, the bytes after the last full block are ignored.
+     * @param W         64 words of work space.
+     *
+     * @return Number of bytes hashed.
+     */
+    static int blocks(int[] state, byte[] data, int off, int len, int[] W) {
+        int n = len & ~63;
+        int i, j;
+
+        for (i = 0; i < n; i += 64) {
+            for (j = 0; j < 16; j++) {
+                W[j] = word(data, off + i + j * 4);
+            }
+            compress(state, W);
+        }
+        return n;
+    }
+
+    /**
+     * Hash the last (less than 64) bytes of a message and its padding into the state.
+     *
+     * @param state     8 words of the hash state.
+     * @param data      Last bytes of the message.
+     * @param off       Offset of the bytes.
+     * @param len       Number of the bytes (less than 64).
+     * @param total     Length of the whole message (bytes).
+     * @param W         64 words of work space.
+     */
+    static void finish(int[] state, byte[] data, int off, int len, long total, int[] W) {
+        int i;
+
+        for (i = 0; i < 16; i++) {
+            W[i] = 0;
+        }
+        for (i = 0; i < len; i++) {
+            W[i >> 2] |= (data[off + i] & 0xff) << (24 - (i & 3) * 8);
+        }
+        W[len >> 2] |= 0x80 << (24 - (len & 3) * 8);
+
+        if (len >= 56) {
+            compress(state, W);
+            for (i = 0; i < 16; i++) {
+                W[i] = 0;
+            }
+        }
+        W[14] = (int) (total >>> 29);
+        W[15] = (int) (total << 3);
+        compress(state, W);
+    }
+
+    static int word(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+}
@@ -0,0 +1,138 @@
+package com.lambdaworks.crypto;
+
+/**
+ * SHA-512 (FIPS 180-4) on big-endian words, for the HMAC states of
+ * {@link PBKDF#pbkdf2HmacSHA512}.
+ */
+final class SHA512 {
+    static final long[] IV = {
+        0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+        0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+
+    private static final long[] K = {
+        0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+        0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+        0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+        0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+        0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+        0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+        0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+        0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+        0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+        0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+        0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+        0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+        0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+        0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+        0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+        0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+        0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+        0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+        0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+        0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+    };
+
+    private SHA512() {
+    }
+
+    /**
+     * Hash one 128 byte block into the state.
+     *
+     * @param state     8 words of the hash state.
+     * @param W         Block in W[0..15]; W must have 80 words, W[16..79] are overwritten.
+     */
+    static void compress(long[] state, long[] W) {
+        long a = state[0], b = state[1], c = state[2], d = state[3];
+        long e = state[4], f = state[5], g = state[6], h = state[7];
+        long t1, t2, w2, w15;
+        int t;
+
+        for (t = 16; t < 80; t++) {
+            w2  = W[t - 2];
+            w15 = W[t - 15];
+            W[t] = W[t - 16] + W[t - 7]
+                 + (Long.rotateRight(w15, 1) ^ Long.rotateRight(w15, 8) ^ (w15 >>> 7))
+                 + (Long.rotateRight(w2, 19) ^ Long.rotateRight(w2, 61) ^ (w2 >>> 6));
+        }
+
+        for (t = 0; t < 80; t++) {
+            t1 = h + (Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41))
+                   + ((e & f) ^ (~e & g)) + K[t] + W[t];
+            t2 = (Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39))
+                   + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        state[0] += a; state[1] += b; state[2] += c; state[3] += d;
+        state[4] += e; state[5] += f; state[6] += g; state[7] += h;
+    }
+
+    /**
+     * Hash the full 128 byte blocks of data into the state.
+     *
+     * @param state     8 words of the hash state.
+     * @param data      Data.
+     * @param off       Offset of the data.
+     * @param len       Length of the data, the bytes after the last full block are ignored.
+     * @param W         80 words of work space.
+     *
+     * @return Number of bytes hashed.
+     */
+    static int blocks(long[] state, byte[] data, int off, int len, long[] W) {
+        int n = len & ~127;
+        int i, j;
+
+        for (i = 0; i < n; i += 128) {
+            for (j = 0; j < 16; j++) {
+                W[j] = word(data, off + i + j * 8);
+            }
+            compress(state, W);
+        }
+        return n;
+    }
+
+    /**
+     * Hash the last (less than 128) bytes of a message and its padding into the state.
+     *
+     * @param state     8 words of the hash state.
+     * @param data      Last bytes of the message.
+     * @param off       Offset of the bytes.
+     * @param len       Number of the bytes (less than 128).
+     * @param total     Length of the whole message (bytes).
+     * @param W         80 words of work space.
+     */
+    static void finish(long[] state, byte[] data, int off, int len, long total, long[] W) {
+        int i;
+
+        for (i = 0; i < 16; i++) {
+            W[i] = 0;
+        }
+        for (i = 0; i < len; i++) {
+            W[i >> 3] |= (data[off + i] & 0xffL) << (56 - (i & 7) * 8);
+        }
+        W[len >> 3] |= 0x80L << (56 - (len & 7) * 8);
+
+        if (len >= 112) {
+            compress(state, W);
+            for (i = 0; i < 16; i++) {
+                W[i] = 0;
+            }
+        }
+        // 128-bit length, the high word is always 0 for byte[] messages
+        W[14] = total >>> 61;
+        W[15] = total << 3;
+        compress(state, W);
+    }
+
+    static long word(byte[] b, int off) {
+        return (long) SHA256.word(b, off) << 32 | (SHA256.word(b, off + 4) & 0xffffffffL);
+    }
+}
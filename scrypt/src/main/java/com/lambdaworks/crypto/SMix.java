@@ -0,0 +1,26 @@
+package com.lambdaworks.crypto;
+
+/**
+ * SMix step of the Java scrypt implementation on heap buffers. {@link SCrypt} uses its own
+ * scalar code unless another implementation is installed with {@link SCrypt#setSMix}, or found
+ * on the classpath (the Vector API implementation built from {@code src/vector}).
+ */
+public interface SMix {
+    /**
+     * SMix of one 128 * r byte block of B, kept as little-endian words. The contents of V and
+     * XY are implementation specific.
+     *
+     * @param B         Blocks.
+     * @param Bi        Offset of the block in B.
+     * @param r         Memory cost parameter.
+     * @param N         CPU cost parameter.
+     * @param V         Work buffer of at least 32 * r * N words.
+     * @param XY        Work buffer of at least {@link SCrypt#XYLength(int)} words.
+     */
+    void smix(int[] B, int Bi, int r, int N, int[] V, int[] XY);
+
+    /**
+     * @return Name of the implementation.
+     */
+    String name();
+}
@@ -3,9 +3,20 @@
 package com.lambdaworks.jni;
 
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
 import java.security.CodeSource;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -17,11 +28,20 @@ import java.util.jar.JarFile;
  * Given a library path and name this loader looks for a native library with path
  * [libraryPath]/[arch]/[os]/lib[name].[ext]
  *
+ * Extracted libraries are kept in a per-user cache directory under a name containing the
+ * SHA-256 of the jar entry, so later JVM starts load the cached copy without writing it again.
+ * The cached copy is checked against the SHA-256 of the entry on every load, and the cache is
+ * used only while the directory is owned by the current user and not writable by anybody else
+ * (otherwise the library is extracted to a temp file as without a cache). The directory is given
+ * by the system property {@code com.lambdaworks.jni.cache} and defaults to
+ * {@code ~/.cache/lambdaworks-jni}.
+ *
  * @author Will Glozer
  */
 public class JarLibraryLoader implements LibraryLoader {
     private final CodeSource codeSource;
     private final String libraryPath;
+    private final File cacheDir;
 
     /**
      * Initialize a new instance that looks for shared libraries located in the same jar
@@ -39,12 +59,26 @@ public class JarLibraryLoader implements LibraryLoader {
      * @param libraryPath   Path prefix of shared libraries.
      */
     public JarLibraryLoader(CodeSource codeSource, String libraryPath) {
+        this(codeSource, libraryPath, defaultCacheDir());
+    }
+
+    /**
+     * Initialize a new instance that looks for shared libraries located in the specified
+     * directory of the supplied code source and caches them in the supplied directory.
+     *
+     * @param codeSource    Code source containing shared libraries.
+     * @param libraryPath   Path prefix of shared libraries.
+     * @param cacheDir      Cache of the extracted libraries, null to extract on every load.
+     */
+    public JarLibraryLoader(CodeSource codeSource, String libraryPath, File cacheDir) {
         this.codeSource  = codeSource;
         this.libraryPath = libraryPath;
+        this.cacheDir    = cacheDir;
     }
 
     /**
-     * Load a shared library, and optionally verify the jar signatures.
+     * Load a shared library, and optionally verify the jar signatures. The jar entry is read
+     * (and verified) on every load, a cached library is loaded only if it matches the entry.
      *
      * @param name      Name of the library to load.
      * @param verify    Verify the jar file if signed.
@@ -62,9 +96,14 @@ public class JarLibraryLoader implements LibraryLoader {
                     JarEntry entry = jar.getJarEntry(path);
                     if (entry == null) continue;
 
-                    File lib = extract(name, jar.getInputStream(entry));
-                    System.load(lib.getAbsolutePath());
-                    lib.delete();
+                    File lib = cached(jar, entry);
+                    if (lib != null) {
+                        System.load(lib.getAbsolutePath());
+                    } else {
+                        lib = extract(name, jar.getInputStream(entry));
+                        System.load(lib.getAbsolutePath());
+                        lib.delete();
+                    }
 
                     loaded = true;
                     break;
@@ -111,6 +150,172 @@ public class JarLibraryLoader implements LibraryLoader {
         return lib;
     }
 
+    /**
+     * Find the cached copy of a jar entry, extracting it to the cache when missing or
+     * damaged. The copy is named after the SHA-256 of the entry, so a changed library in
+     * the jar gets a new file.
+     *
+     * @param jar   Jar containing the library.
+     * @param entry Library entry.
+     *
+     * @return The cached library, or null when the entry can't be cached.
+     */
+    private File cached(JarFile jar, JarEntry entry) {
+        if (cacheDir == null || !isPrivateDir(cacheDir)) return null;
+
+        byte[] bytes;
+        byte[] sha256;
+        try {
+            bytes = readFully(jar.getInputStream(entry));
+            sha256 = MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (IOException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+
+        String fileName = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String ext = dot > 0 ? fileName.substring(dot) : "";
+        File lib = new File(cacheDir, base + "-" + toHex(sha256) + ext);
+
+        if (isIntact(lib, sha256)) return lib;
+
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(base, ".tmp", cacheDir);
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(bytes);
+            } finally {
+                os.close();
+            }
+
+            // Another JVM may have cached the same library meanwhile, either copy is fine.
+            tmp.renameTo(lib);
+            if (!isIntact(lib, sha256)) return null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (tmp != null) tmp.delete();
+        }
+
+        return lib;
+    }
+
+    /**
+     * Check a cached library against the SHA-256 of its jar entry.
+     *
+     * @param lib       Cached library.
+     * @param sha256    SHA-256 of the entry.
+     *
+     * @return true if the cached library matches the entry.
+     */
+    private static boolean isIntact(File lib, byte[] sha256) {
+        if (!lib.isFile()) return false;
+
+        try {
+            byte[] bytes = readFully(new FileInputStream(lib));
+            return MessageDigest.isEqual(sha256, MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (IOException e) {
+            return false;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create the cache directory (accessible by the owner only) if it doesn't exist and check
+     * that it is a directory (not a link) owned by the current user and not writable by the
+     * group or others, so nobody else can replace a library between the check and the load.
+     *
+     * @param dir   Cache directory.
+     *
+     * @return true if the directory can be used as the cache.
+     */
+    private static boolean isPrivateDir(File dir) {
+        Path path = dir.toPath();
+        try {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                Path parent = path.toAbsolutePath().getParent();
+                if (parent != null) Files.createDirectories(parent);
+                try {
+                    Files.createDirectory(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } catch (FileAlreadyExistsException e) {
+                    // created by another JVM, checked below
+                }
+            }
+
+            PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (!attributes.isDirectory() || !attributes.owner().equals(currentUser())) return false;
+
+            Set<PosixFilePermission> permissions = attributes.permissions();
+            return !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+        } catch (IOException e) {
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return Owner of the files created by this process.
+     *
+     * @throws IOException when an IO error occurs.
+     */
+    private static UserPrincipal currentUser() throws IOException {
+        File probe = File.createTempFile("owner", ".tmp");
+        try {
+            return Files.getOwner(probe.toPath());
+        } finally {
+            probe.delete();
+        }
+    }
+
+    /**
+     * Read the stream to the end and close it.
+     *
+     * @param is    Input stream.
+     *
+     * @return Bytes of the stream.
+     *
+     * @throws IOException when an IO error occurs.
+     */
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        try {
+            while ((len = is.read(buf)) > 0) {
+                bytes.write(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return Cache directory given by {@code com.lambdaworks.jni.cache}, by default
+     * {@code ~/.cache/lambdaworks-jni}, or null when there is no home directory.
+     */
+    private static File defaultCacheDir() {
+        String dir = System.getProperty("com.lambdaworks.jni.cache");
+        if (dir != null) return new File(dir);
+
+        String home = System.getProperty("user.home");
+        return home != null && home.length() > 0 ? new File(home, ".cache/lambdaworks-jni") : null;
+    }
+
     /**
      * Generate a list of candidate libraries for the supplied library name and suitable
      * for the current platform.
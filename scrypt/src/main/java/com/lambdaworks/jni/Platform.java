@@ -16,8 +16,9 @@ import static java.util.regex.Pattern.CASE_INSENSITIVE;
  */
 public class Platform {
     public enum Arch {
-        x86   ("x86|i386"),
-        x86_64("x86_64|amd64");
+        x86    ("x86|i386"),
+        x86_64 ("x86_64|amd64"),
+        aarch64("aarch64|arm64");
 
         Pattern pattern;
 
@@ -6,6 +6,10 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE    := scrypt
 LOCAL_SRC_FILES := scrypt_jni.c crypto_scrypt-nosse.c sha256.c
+# SIMD SMix, picked at runtime when the CPU supports it
+ifneq ($(filter x86 x86_64,$(TARGET_ARCH_ABI)),)
+LOCAL_SRC_FILES += crypto_scrypt-sse.c crypto_scrypt-avx2.c
+endif
 LOCAL_CFLAGS += -std=c99 -Wall -O2
 LOCAL_CFLAGS += -DHAVE_CONFIG_H
 LOCAL_LDFLAGS += -lc -shared
@@ -0,0 +1,24 @@
+#!/bin/sh
+# Builds libscrypt for Linux JVM hosts in the [arch]/[os] layout JarLibraryLoader expects:
+#   <out>/x86_64/linux/libscrypt.so and <out>/aarch64/linux/libscrypt.so
+# The compilers can be overridden with CC_X86_64 and CC_AARCH64; a target whose compiler
+# is missing is skipped.
+set -e
+
+OUT=${1:-../../../build/host-jni/lib}
+: ${JAVA_HOME:?JAVA_HOME must point to a JDK}
+
+SRC="scrypt_jni.c crypto_scrypt-nosse.c crypto_scrypt-sse.c crypto_scrypt-avx2.c sha256.c"
+CFLAGS="-std=c99 -Wall -O2 -DHAVE_CONFIG_H -D_GNU_SOURCE -fPIC -I$JAVA_HOME/include -I$JAVA_HOME/include/linux"
+
+build() {
+    if ! command -v "$2" > /dev/null; then
+        echo "Skipping $1: $2 not found" >&2
+        return
+    fi
+    mkdir -p "$OUT/$1/linux"
+    "$2" $CFLAGS -shared -o "$OUT/$1/linux/libscrypt.so" $SRC -lpthread
+}
+
+build x86_64  ${CC_X86_64:-x86_64-linux-gnu-gcc}
+build aarch64 ${CC_AARCH64:-aarch64-linux-gnu-gcc}
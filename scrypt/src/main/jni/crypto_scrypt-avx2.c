@@ -0,0 +1,293 @@
+/*-
+ * Copyright 2009 Colin Percival
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file was originally written by Colin Percival as part of the Tarsnap
+ * online backup system.
+ */
+#include "scrypt_platform.h"
+
+#include "crypto_scrypt-simd.h"
+
+#ifdef SCRYPT_X86
+
+#include <immintrin.h>
+#include <stdint.h>
+
+#include "sysendian.h"
+
+#define AVX2 __attribute__((target("avx2")))
+
+/*
+ * Two SMix lanes are computed at once: the low 128 bits of every register
+ * belong to the first lane and the high 128 bits to the second one.  Within
+ * a lane the 16 words of a salsa20 block are kept in the same diagonal order
+ * as in crypto_scrypt-sse.c (word i * 5 % 16 at position i); the shuffles
+ * never cross the 128-bit halves, so the two lanes don't mix.
+ *
+ * Both lanes share N and r, so V_i of the two lanes is stored interleaved
+ * as one 256r bytes entry.
+ */
+
+static AVX2 void
+blkcpy(__m256i * D, __m256i * S, size_t L)
+{
+	size_t i;
+
+	for (i = 0; i < L; i++)
+		D[i] = S[i];
+}
+
+static AVX2 void
+blkxor(__m256i * D, __m256i * S, size_t L)
+{
+	size_t i;
+
+	for (i = 0; i < L; i++)
+		D[i] = _mm256_xor_si256(D[i], S[i]);
+}
+
+/**
+ * blkxor2(D, S0, S1, L):
+ * XOR the first lane of D with the first lane of S0 and the second lane of
+ * D with the second lane of S1.
+ */
+static AVX2 void
+blkxor2(__m256i * D, __m256i * S0, __m256i * S1, size_t L)
+{
+	size_t i;
+
+	for (i = 0; i < L; i++)
+		D[i] = _mm256_xor_si256(D[i],
+		    _mm256_blend_epi32(S0[i], S1[i], 0xF0));
+}
+
+/**
+ * salsa20_8(B):
+ * Apply the salsa20/8 core to the provided pair of blocks.
+ */
+static AVX2 void
+salsa20_8(__m256i B[4])
+{
+	__m256i X0, X1, X2, X3;
+	__m256i T;
+	size_t i;
+
+	X0 = B[0];
+	X1 = B[1];
+	X2 = B[2];
+	X3 = B[3];
+
+	for (i = 0; i < 8; i += 2) {
+		/* Operate on "columns". */
+		T = _mm256_add_epi32(X0, X3);
+		X1 = _mm256_xor_si256(X1, _mm256_slli_epi32(T, 7));
+		X1 = _mm256_xor_si256(X1, _mm256_srli_epi32(T, 25));
+		T = _mm256_add_epi32(X1, X0);
+		X2 = _mm256_xor_si256(X2, _mm256_slli_epi32(T, 9));
+		X2 = _mm256_xor_si256(X2, _mm256_srli_epi32(T, 23));
+		T = _mm256_add_epi32(X2, X1);
+		X3 = _mm256_xor_si256(X3, _mm256_slli_epi32(T, 13));
+		X3 = _mm256_xor_si256(X3, _mm256_srli_epi32(T, 19));
+		T = _mm256_add_epi32(X3, X2);
+		X0 = _mm256_xor_si256(X0, _mm256_slli_epi32(T, 18));
+		X0 = _mm256_xor_si256(X0, _mm256_srli_epi32(T, 14));
+
+		/* Rearrange data. */
+		X1 = _mm256_shuffle_epi32(X1, 0x93);
+		X2 = _mm256_shuffle_epi32(X2, 0x4E);
+		X3 = _mm256_shuffle_epi32(X3, 0x39);
+
+		/* Operate on "rows". */
+		T = _mm256_add_epi32(X0, X1);
+		X3 = _mm256_xor_si256(X3, _mm256_slli_epi32(T, 7));
+		X3 = _mm256_xor_si256(X3, _mm256_srli_epi32(T, 25));
+		T = _mm256_add_epi32(X3, X0);
+		X2 = _mm256_xor_si256(X2, _mm256_slli_epi32(T, 9));
+		X2 = _mm256_xor_si256(X2, _mm256_srli_epi32(T, 23));
+		T = _mm256_add_epi32(X2, X3);
+		X1 = _mm256_xor_si256(X1, _mm256_slli_epi32(T, 13));
+		X1 = _mm256_xor_si256(X1, _mm256_srli_epi32(T, 19));
+		T = _mm256_add_epi32(X1, X2);
+		X0 = _mm256_xor_si256(X0, _mm256_slli_epi32(T, 18));
+		X0 = _mm256_xor_si256(X0, _mm256_srli_epi32(T, 14));
+
+		/* Rearrange data. */
+		X1 = _mm256_shuffle_epi32(X1, 0x39);
+		X2 = _mm256_shuffle_epi32(X2, 0x4E);
+		X3 = _mm256_shuffle_epi32(X3, 0x93);
+	}
+
+	B[0] = _mm256_add_epi32(B[0], X0);
+	B[1] = _mm256_add_epi32(B[1], X1);
+	B[2] = _mm256_add_epi32(B[2], X2);
+	B[3] = _mm256_add_epi32(B[3], X3);
+}
+
+/**
+ * blockmix_salsa8(Bin, Bout, X, r):
+ * Compute Bout = BlockMix_{salsa20/8, r}(Bin) for both lanes.  The input
+ * Bin must be 256r bytes in length; the output Bout must also be the same
+ * size.  The temporary space X must be 128 bytes.
+ */
+static AVX2 void
+blockmix_salsa8(__m256i * Bin, __m256i * Bout, __m256i * X, size_t r)
+{
+	size_t i;
+
+	/* 1: X <-- B_{2r - 1} */
+	blkcpy(X, &Bin[8 * r - 4], 4);
+
+	/* 2: for i = 0 to 2r - 1 do */
+	for (i = 0; i < r; i++) {
+		/* 3: X <-- H(X \xor B_i) */
+		blkxor(X, &Bin[i * 8], 4);
+		salsa20_8(X);
+
+		/* 4: Y_i <-- X */
+		/* 6: B' <-- (Y_0, Y_2 ... Y_{2r-2}, Y_1, Y_3 ... Y_{2r-1}) */
+		blkcpy(&Bout[i * 4], X, 4);
+
+		/* 3: X <-- H(X \xor B_i) */
+		blkxor(X, &Bin[i * 8 + 4], 4);
+		salsa20_8(X);
+
+		/* 4: Y_i <-- X */
+		/* 6: B' <-- (Y_0, Y_2 ... Y_{2r-2}, Y_1, Y_3 ... Y_{2r-1}) */
+		blkcpy(&Bout[(r + i) * 4], X, 4);
+	}
+}
+
+/**
+ * integerify(B, r, lane):
+ * Return the result of parsing B_{2r-1} of the lane as a little-endian
+ * integer.
+ */
+static uint64_t
+integerify(void * B, size_t r, size_t lane)
+{
+	uint32_t * X = (void *)((uintptr_t)(B) + (2 * r - 1) * 128);
+
+	/* Words 0 and 1 of the block sit at the positions 0 and 13. */
+	return (((uint64_t)(X[3 * 8 + lane * 4 + 1]) << 32) + X[lane * 4]);
+}
+
+/**
+ * load(X32, B, r, lane):
+ * Copy the lane B into its half of X, in the diagonal order.
+ */
+static void
+load(uint32_t * X32, const uint8_t * B, size_t r, size_t lane)
+{
+	size_t k, i, q;
+
+	for (k = 0; k < 2 * r; k++) {
+		for (i = 0; i < 16; i++) {
+			q = k * 16 + i;
+			X32[(q / 4) * 8 + lane * 4 + q % 4] =
+			    le32dec(&B[(k * 16 + (i * 5 % 16)) * 4]);
+		}
+	}
+}
+
+/**
+ * store(B, X32, r, lane):
+ * Copy the lane half of X back into B.
+ */
+static void
+store(uint8_t * B, const uint32_t * X32, size_t r, size_t lane)
+{
+	size_t k, i, q;
+
+	for (k = 0; k < 2 * r; k++) {
+		for (i = 0; i < 16; i++) {
+			q = k * 16 + i;
+			le32enc(&B[(k * 16 + (i * 5 % 16)) * 4],
+			    X32[(q / 4) * 8 + lane * 4 + q % 4]);
+		}
+	}
+}
+
+/**
+ * smix2_avx2(B0, B1, r, N, V, XY):
+ * Compute B0 = SMix_r(B0, N) and B1 = SMix_r(B1, N).  The inputs B0 and B1
+ * must be 128r bytes in length; the temporary storage V must be 256rN bytes
+ * in length; the temporary storage XY must be 512r + 128 bytes in length.
+ * The value N must be a power of 2 greater than 1.  The arrays V and XY must
+ * be aligned to a multiple of 64 bytes.
+ */
+AVX2 void
+smix2_avx2(uint8_t * B0, uint8_t * B1, size_t r, uint64_t N, void * V,
+    void * XY)
+{
+	__m256i * X = XY;
+	__m256i * Y = (void *)((uintptr_t)(XY) + 256 * r);
+	__m256i * Z = (void *)((uintptr_t)(XY) + 512 * r);
+	__m256i * W = V;
+	uint64_t i, j0, j1;
+
+	/* 1: X <-- B */
+	load((uint32_t *)X, B0, r, 0);
+	load((uint32_t *)X, B1, r, 1);
+
+	/* 2: for i = 0 to N - 1 do */
+	for (i = 0; i < N; i += 2) {
+		/* 3: V_i <-- X */
+		blkcpy(&W[i * 8 * r], X, 8 * r);
+
+		/* 4: X <-- H(X) */
+		blockmix_salsa8(X, Y, Z, r);
+
+		/* 3: V_i <-- X */
+		blkcpy(&W[(i + 1) * 8 * r], Y, 8 * r);
+
+		/* 4: X <-- H(X) */
+		blockmix_salsa8(Y, X, Z, r);
+	}
+
+	/* 6: for i = 0 to N - 1 do */
+	for (i = 0; i < N; i += 2) {
+		/* 7: j <-- Integerify(X) mod N */
+		j0 = integerify(X, r, 0) & (N - 1);
+		j1 = integerify(X, r, 1) & (N - 1);
+
+		/* 8: X <-- H(X \xor V_j) */
+		blkxor2(X, &W[j0 * 8 * r], &W[j1 * 8 * r], 8 * r);
+		blockmix_salsa8(X, Y, Z, r);
+
+		/* 7: j <-- Integerify(X) mod N */
+		j0 = integerify(Y, r, 0) & (N - 1);
+		j1 = integerify(Y, r, 1) & (N - 1);
+
+		/* 8: X <-- H(X \xor V_j) */
+		blkxor2(Y, &W[j0 * 8 * r], &W[j1 * 8 * r], 8 * r);
+		blockmix_salsa8(Y, X, Z, r);
+	}
+
+	/* 10: B' <-- X */
+	store(B0, (uint32_t *)X, r, 0);
+	store(B1, (uint32_t *)X, r, 1);
+}
+
+#endif /* SCRYPT_X86 */
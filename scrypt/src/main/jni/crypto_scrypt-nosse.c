@@ -32,6 +32,7 @@
 #include <sys/mman.h>
 
 #include <errno.h>
+#include <pthread.h>
 #include <stdint.h>
 #include <stdlib.h>
 #include <string.h>
@@ -40,6 +41,11 @@
 #include "sysendian.h"
 
 #include "crypto_scrypt.h"
+#include "crypto_scrypt-simd.h"
+
+#ifdef SCRYPT_X86
+#include <cpuid.h>
+#endif
 
 static void blkcpy(void *, void *, size_t);
 static void blkxor(void *, void *, size_t);
@@ -221,6 +227,181 @@ smix(uint8_t * B, size_t r, uint64_t N, uint32_t * V, uint32_t * XY)
 		le32enc(&B[4 * k], X[k]);
 }
 
+static int variant = -1;
+
+/**
+ * detect_variant():
+ * Query the CPU for the SIMD extensions SMix can use.
+ */
+static int
+detect_variant(void)
+{
+#ifdef SCRYPT_X86
+	unsigned int a, b, c, d;
+	unsigned int xcr0, xcr0_hi;
+
+	if (!__get_cpuid(1, &a, &b, &c, &d) || !(d & bit_SSE2))
+		return (SCRYPT_VARIANT_SCALAR);
+
+	/* AVX2 also needs the OS to save the YMM registers. */
+	if ((c & bit_OSXSAVE) && (c & bit_AVX) &&
+	    __get_cpuid_max(0, NULL) >= 7) {
+		__asm__ ("xgetbv" : "=a" (xcr0), "=d" (xcr0_hi) : "c" (0));
+		__cpuid_count(7, 0, a, b, c, d);
+		if ((xcr0 & 6) == 6 && (b & bit_AVX2))
+			return (SCRYPT_VARIANT_AVX2);
+	}
+	return (SCRYPT_VARIANT_SSE2);
+#else
+	return (SCRYPT_VARIANT_SCALAR);
+#endif
+}
+
+/**
+ * crypto_scrypt_variant():
+ * Return the fastest SMix implementation supported by the CPU.  The CPU is
+ * queried once; concurrent first calls just repeat the query.
+ */
+int
+crypto_scrypt_variant(void)
+{
+
+	if (variant < 0)
+		variant = detect_variant();
+	return (variant);
+}
+
+/**
+ * crypto_scrypt_variant_name(variant):
+ * Return the name of the SMix implementation.
+ */
+const char *
+crypto_scrypt_variant_name(int v)
+{
+
+	switch (v) {
+	case SCRYPT_VARIANT_AVX2:
+		return ("avx2");
+	case SCRYPT_VARIANT_SSE2:
+		return ("sse2");
+	default:
+		return ("scalar");
+	}
+}
+
+/**
+ * scrypt_lanes(B, r, N, from, to):
+ * Compute B_i <-- MF(B_i, N) for the lanes from .. to - 1 of B.  The V and
+ * XY buffers are allocated once for all of these lanes.  With AVX2 the
+ * lanes are computed two at a time, so V and XY are twice as large.
+ *
+ * Return 0 on success; or -1 on error.
+ */
+static int
+scrypt_lanes(uint8_t * B, uint32_t r, uint64_t N, uint32_t from, uint32_t to)
+{
+	void * V0, * XY0;
+	uint32_t * V;
+	uint32_t * XY;
+	uint32_t i;
+	int v = crypto_scrypt_variant();
+	size_t ways = 1;
+
+	if (v == SCRYPT_VARIANT_AVX2) {
+		if (to - from >= 2 && N <= SIZE_MAX / 256 / r)
+			ways = 2;
+		else
+			v = SCRYPT_VARIANT_SSE2;
+	}
+
+	/* Allocate memory. */
+#ifdef HAVE_POSIX_MEMALIGN
+	if ((errno = posix_memalign(&XY0, 64, ways * (256 * r + 64))) != 0)
+		goto err0;
+	XY = (uint32_t *)(XY0);
+#ifndef MAP_ANON
+	if ((errno = posix_memalign(&V0, 64, ways * 128 * r * N)) != 0)
+		goto err1;
+	V = (uint32_t *)(V0);
+#endif
+#else
+	if ((XY0 = malloc(ways * (256 * r + 64) + 63)) == NULL)
+		goto err0;
+	XY = (uint32_t *)(((uintptr_t)(XY0) + 63) & ~ (uintptr_t)(63));
+#ifndef MAP_ANON
+	if ((V0 = malloc(ways * 128 * r * N + 63)) == NULL)
+		goto err1;
+	V = (uint32_t *)(((uintptr_t)(V0) + 63) & ~ (uintptr_t)(63));
+#endif
+#endif
+#ifdef MAP_ANON
+	if ((V0 = mmap(NULL, ways * 128 * r * N, PROT_READ | PROT_WRITE,
+#ifdef MAP_NOCORE
+	    MAP_ANON | MAP_PRIVATE | MAP_NOCORE,
+#else
+	    MAP_ANON | MAP_PRIVATE,
+#endif
+	    -1, 0)) == MAP_FAILED)
+		goto err1;
+	V = (uint32_t *)(V0);
+#endif
+
+	/* 2: for i = 0 to p - 1 do */
+	for (i = from; i < to; i++) {
+		/* 3: B_i <-- MF(B_i, N) */
+#ifdef SCRYPT_X86
+		if (v == SCRYPT_VARIANT_AVX2 && i + 1 < to) {
+			smix2_avx2(&B[i * 128 * r], &B[(i + 1) * 128 * r],
+			    r, N, V, XY);
+			i++;
+		} else if (v != SCRYPT_VARIANT_SCALAR)
+			smix_sse2(&B[i * 128 * r], r, N, V, XY);
+		else
+#endif
+			smix(&B[i * 128 * r], r, N, V, XY);
+	}
+
+	/* Free memory. */
+#ifdef MAP_ANON
+	if (munmap(V0, ways * 128 * r * N))
+		goto err1;
+#else
+	free(V0);
+#endif
+	free(XY0);
+
+	/* Success! */
+	return (0);
+
+err1:
+	free(XY0);
+err0:
+	/* Failure! */
+	return (-1);
+}
+
+struct scrypt_lanes_job {
+	pthread_t thread;
+	int started;
+	uint8_t * B;
+	uint32_t r;
+	uint64_t N;
+	uint32_t from;
+	uint32_t to;
+	int result;
+	int error;
+};
+
+static void *
+scrypt_lanes_thread(void * arg)
+{
+	struct scrypt_lanes_job * job = arg;
+
+	job->result = scrypt_lanes(job->B, job->r, job->N, job->from, job->to);
+	job->error = errno;
+	return (NULL);
+}
+
 /**
  * crypto_scrypt(passwd, passwdlen, salt, saltlen, N, r, p, buf, buflen):
  * Compute scrypt(passwd[0 .. passwdlen - 1], salt[0 .. saltlen - 1], N, r,
@@ -235,11 +416,32 @@ crypto_scrypt(const uint8_t * passwd, size_t passwdlen,
     const uint8_t * salt, size_t saltlen, uint64_t N, uint32_t r, uint32_t p,
     uint8_t * buf, size_t buflen)
 {
-	void * B0, * V0, * XY0;
+
+	return (crypto_scrypt_mt(passwd, passwdlen, salt, saltlen, N, r, p,
+	    buf, buflen, 1));
+}
+
+/**
+ * crypto_scrypt_mt(passwd, passwdlen, salt, saltlen, N, r, p, buf, buflen,
+ *     threads):
+ * Compute scrypt(passwd[0 .. passwdlen - 1], salt[0 .. saltlen - 1], N, r,
+ * p, buflen) like crypto_scrypt, running the p lanes on up to threads
+ * threads (the calling thread included).  Every thread allocates its own
+ * 128rN bytes V buffer (256rN bytes when AVX2 pairs up two of its lanes).
+ *
+ * Return 0 on success; or -1 on error.
+ */
+int
+crypto_scrypt_mt(const uint8_t * passwd, size_t passwdlen,
+    const uint8_t * salt, size_t saltlen, uint64_t N, uint32_t r, uint32_t p,
+    uint8_t * buf, size_t buflen, uint32_t threads)
+{
+	void * B0;
 	uint8_t * B;
-	uint32_t * V;
-	uint32_t * XY;
+	struct scrypt_lanes_job * jobs;
+	uint32_t chunk;
 	uint32_t i;
+	int error;
 
 	/* Sanity-check parameters. */
 #if SIZE_MAX > UINT32_MAX
@@ -266,70 +468,68 @@ crypto_scrypt(const uint8_t * passwd, size_t passwdlen,
 	}
 
 	/* Allocate memory. */
-#ifdef HAVE_POSIX_MEMALIGN
-	if ((errno = posix_memalign(&B0, 64, 128 * r * p)) != 0)
-		goto err0;
-	B = (uint8_t *)(B0);
-	if ((errno = posix_memalign(&XY0, 64, 256 * r + 64)) != 0)
-		goto err1;
-	XY = (uint32_t *)(XY0);
-#ifndef MAP_ANON
-	if ((errno = posix_memalign(&V0, 64, 128 * r * N)) != 0)
-		goto err2;
-	V = (uint32_t *)(V0);
-#endif
-#else
 	if ((B0 = malloc(128 * r * p + 63)) == NULL)
 		goto err0;
 	B = (uint8_t *)(((uintptr_t)(B0) + 63) & ~ (uintptr_t)(63));
-	if ((XY0 = malloc(256 * r + 64 + 63)) == NULL)
-		goto err1;
-	XY = (uint32_t *)(((uintptr_t)(XY0) + 63) & ~ (uintptr_t)(63));
-#ifndef MAP_ANON
-	if ((V0 = malloc(128 * r * N + 63)) == NULL)
-		goto err2;
-	V = (uint32_t *)(((uintptr_t)(V0) + 63) & ~ (uintptr_t)(63));
-#endif
-#endif
-#ifdef MAP_ANON
-	if ((V0 = mmap(NULL, 128 * r * N, PROT_READ | PROT_WRITE,
-#ifdef MAP_NOCORE
-	    MAP_ANON | MAP_PRIVATE | MAP_NOCORE,
-#else
-	    MAP_ANON | MAP_PRIVATE,
-#endif
-	    -1, 0)) == MAP_FAILED)
-		goto err2;
-	V = (uint32_t *)(V0);
-#endif
 
 	/* 1: (B_0 ... B_{p-1}) <-- PBKDF2(P, S, 1, p * MFLen) */
 	PBKDF2_SHA256(passwd, passwdlen, salt, saltlen, 1, B, p * 128 * r);
 
-	/* 2: for i = 0 to p - 1 do */
-	for (i = 0; i < p; i++) {
-		/* 3: B_i <-- MF(B_i, N) */
-		smix(&B[i * 128 * r], r, N, V, XY);
+	if (threads > p)
+		threads = p;
+	if (threads > SCRYPT_MAX_THREADS)
+		threads = SCRYPT_MAX_THREADS;
+
+	/* 2: for i = 0 to p - 1 do (split between the threads) */
+	if (threads <= 1) {
+		if (scrypt_lanes(B, r, N, 0, p))
+			goto err1;
+	} else {
+		if ((jobs = calloc(threads, sizeof(struct scrypt_lanes_job))) == NULL)
+			goto err1;
+		chunk = (p + threads - 1) / threads;
+		for (i = 0; i < threads; i++) {
+			jobs[i].B = B;
+			jobs[i].r = r;
+			jobs[i].N = N;
+			jobs[i].from = i * chunk < p ? i * chunk : p;
+			jobs[i].to = (i + 1) * chunk < p ? (i + 1) * chunk : p;
+		}
+
+		/* Lanes of a thread which can't be started run on this one. */
+		for (i = 1; i < threads; i++) {
+			if (pthread_create(&jobs[i].thread, NULL,
+			    scrypt_lanes_thread, &jobs[i]) == 0)
+				jobs[i].started = 1;
+			else
+				scrypt_lanes_thread(&jobs[i]);
+		}
+		scrypt_lanes_thread(&jobs[0]);
+
+		error = 0;
+		for (i = 0; i < threads; i++) {
+			if (jobs[i].started)
+				pthread_join(jobs[i].thread, NULL);
+			if (jobs[i].result && error == 0)
+				error = jobs[i].error;
+		}
+		free(jobs);
+
+		if (error) {
+			errno = error;
+			goto err1;
+		}
 	}
 
 	/* 5: DK <-- PBKDF2(P, B, 1, dkLen) */
 	PBKDF2_SHA256(passwd, passwdlen, B, p * 128 * r, 1, buf, buflen);
 
 	/* Free memory. */
-#ifdef MAP_ANON
-	if (munmap(V0, 128 * r * N))
-		goto err2;
-#else
-	free(V0);
-#endif
-	free(XY0);
 	free(B0);
 
 	/* Success! */
 	return (0);
 
-err2:
-	free(XY0);
 err1:
 	free(B0);
 err0:
@@ -0,0 +1,48 @@
+#ifndef _CRYPTO_SCRYPT_SIMD_H_
+#define _CRYPTO_SCRYPT_SIMD_H_
+
+#include <stddef.h>
+#include <stdint.h>
+
+/* SMix implementations selected at runtime by crypto_scrypt_variant(). */
+#define SCRYPT_VARIANT_SCALAR	0
+#define SCRYPT_VARIANT_SSE2	1
+#define SCRYPT_VARIANT_AVX2	2
+
+#if defined(__x86_64__) || defined(__i386__)
+#define SCRYPT_X86 1
+#endif
+
+/**
+ * crypto_scrypt_variant():
+ * Return the fastest SMix implementation supported by the CPU.
+ */
+int crypto_scrypt_variant(void);
+
+/**
+ * crypto_scrypt_variant_name(variant):
+ * Return the name of the SMix implementation ("scalar", "sse2" or "avx2").
+ */
+const char * crypto_scrypt_variant_name(int);
+
+#ifdef SCRYPT_X86
+/**
+ * smix_sse2(B, r, N, V, XY):
+ * Compute B = SMix_r(B, N) with SSE2.  The temporary storage V must be
+ * 128rN bytes in length; the temporary storage XY must be 256r + 64 bytes
+ * in length.  The arrays V and XY must be aligned to a multiple of 64 bytes.
+ */
+void smix_sse2(uint8_t *, size_t, uint64_t, void *, void *);
+
+/**
+ * smix2_avx2(B0, B1, r, N, V, XY):
+ * Compute B0 = SMix_r(B0, N) and B1 = SMix_r(B1, N) at once with AVX2
+ * (each 128-bit half of a register belongs to one of the lanes).  The
+ * temporary storage V must be 256rN bytes in length; the temporary storage
+ * XY must be 512r + 128 bytes in length.  The arrays V and XY must be
+ * aligned to a multiple of 64 bytes.
+ */
+void smix2_avx2(uint8_t *, uint8_t *, size_t, uint64_t, void *, void *);
+#endif
+
+#endif /* !_CRYPTO_SCRYPT_SIMD_H_ */
@@ -43,4 +43,20 @@
 int crypto_scrypt(const uint8_t *, size_t, const uint8_t *, size_t, uint64_t,
     uint32_t, uint32_t, uint8_t *, size_t);
 
+/**
+ * Upper limit of the threads of crypto_scrypt_mt.
+ */
+#define SCRYPT_MAX_THREADS 64
+
+/**
+ * crypto_scrypt_mt(passwd, passwdlen, salt, saltlen, N, r, p, buf, buflen,
+ *     threads):
+ * Compute scrypt like crypto_scrypt, running the p lanes on up to threads
+ * threads.  Every thread uses its own 128rN bytes of memory.
+ *
+ * Return 0 on success; or -1 on error.
+ */
+int crypto_scrypt_mt(const uint8_t *, size_t, const uint8_t *, size_t,
+    uint64_t, uint32_t, uint32_t, uint8_t *, size_t, uint32_t);
+
 #endif /* !_CRYPTO_SCRYPT_H_ */
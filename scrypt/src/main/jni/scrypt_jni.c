@@ -2,10 +2,30 @@
 
 #include <errno.h>
 #include <stdlib.h>
+#include <string.h>
 #include <inttypes.h>
+#include <pthread.h>
 
 #include <jni.h>
 #include "crypto_scrypt.h"
+#include "crypto_scrypt-simd.h"
+
+static void throwScryptError(JNIEnv *env, int error) {
+    jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    char *msg;
+    switch (error) {
+        case EINVAL:
+            msg = "N must be a power of 2 greater than 1";
+            break;
+        case EFBIG:
+        case ENOMEM:
+            msg = "Insufficient memory available";
+            break;
+        default:
+            msg = "Memory allocation failed";
+    }
+    (*env)->ThrowNew(env, e, msg);
+}
 
 jbyteArray JNICALL scryptN(JNIEnv *env, jclass cls, jbyteArray passwd, jbyteArray salt,
     jint N, jint r, jint p, jint dkLen)
@@ -20,20 +40,7 @@ jbyteArray JNICALL scryptN(JNIEnv *env, jclass cls, jbyteArray passwd, jbyteArra
     if (P == NULL || S == NULL || buf == NULL) goto cleanup;
 
     if (crypto_scrypt((uint8_t *) P, Plen, (uint8_t *) S, Slen, N, r, p, buf, dkLen)) {
-        jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
-        char *msg;
-        switch (errno) {
-            case EINVAL:
-                msg = "N must be a power of 2 greater than 1";
-                break;
-            case EFBIG:
-            case ENOMEM:
-                msg = "Insufficient memory available";
-                break;
-            default:
-                msg = "Memory allocation failed";
-        }
-        (*env)->ThrowNew(env, e, msg);
+        throwScryptError(env, errno);
         goto cleanup;
     }
 
@@ -51,8 +58,193 @@ jbyteArray JNICALL scryptN(JNIEnv *env, jclass cls, jbyteArray passwd, jbyteArra
     return DK;
 }
 
+/*
+ * Work shared by the threads of a batch. Items are taken one by one from
+ * the shared counter, so every thread stays busy until the batch is done.
+ */
+struct batch {
+    uint8_t **P;
+    size_t *Plen;
+    uint8_t **S;
+    size_t *Slen;
+    uint8_t *DK;
+    size_t dkLen;
+    size_t count;
+    uint64_t N;
+    uint32_t r;
+    uint32_t p;
+    uint32_t laneThreads;
+
+    pthread_mutex_t lock;
+    size_t next;
+    int error;
+};
+
+static void *batchWorker(void *arg) {
+    struct batch *batch = arg;
+    size_t i;
+
+    for (;;) {
+        pthread_mutex_lock(&batch->lock);
+        i = batch->error ? batch->count : batch->next++;
+        pthread_mutex_unlock(&batch->lock);
+
+        if (i >= batch->count) break;
+
+        if (crypto_scrypt_mt(batch->P[i], batch->Plen[i], batch->S[i], batch->Slen[i],
+                batch->N, batch->r, batch->p, &batch->DK[i * batch->dkLen], batch->dkLen, batch->laneThreads)) {
+            int error = errno;
+            pthread_mutex_lock(&batch->lock);
+            if (!batch->error) batch->error = error ? error : ENOMEM;
+            pthread_mutex_unlock(&batch->lock);
+        }
+    }
+
+    return NULL;
+}
+
+static uint8_t *copyBytes(JNIEnv *env, jobjectArray arrays, jsize i, size_t *len) {
+    jbyteArray array = (jbyteArray) (*env)->GetObjectArrayElement(env, arrays, i);
+    uint8_t *bytes;
+
+    if (array == NULL) {
+        jclass e = (*env)->FindClass(env, "java/lang/NullPointerException");
+        (*env)->ThrowNew(env, e, "Password or salt is null");
+        return NULL;
+    }
+
+    *len = (*env)->GetArrayLength(env, array);
+    bytes = malloc(*len > 0 ? *len : 1);
+    if (bytes != NULL) {
+        (*env)->GetByteArrayRegion(env, array, 0, (jsize) *len, (jbyte *) bytes);
+    }
+    (*env)->DeleteLocalRef(env, array);
+
+    return bytes;
+}
+
+jobjectArray JNICALL scryptBatchN(JNIEnv *env, jclass cls, jobjectArray passwds, jobjectArray salts,
+    jint N, jint r, jint p, jint dkLen, jint threads)
+{
+    jsize count = (*env)->GetArrayLength(env, passwds);
+    jobjectArray DKs = NULL;
+    pthread_t *workers = NULL;
+    int *started = NULL;
+    uint32_t workerCount;
+    struct batch batch;
+    jclass byteArrayClass;
+    jsize i;
+
+    if ((*env)->GetArrayLength(env, salts) != count) {
+        jclass e = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+        (*env)->ThrowNew(env, e, "Number of passwords and salts differs");
+        return NULL;
+    }
+
+    memset(&batch, 0, sizeof(batch));
+    batch.count = count;
+    batch.dkLen = dkLen;
+    batch.N = N;
+    batch.r = r;
+    batch.p = p;
+
+    batch.P    = calloc(count + 1, sizeof(uint8_t *));
+    batch.S    = calloc(count + 1, sizeof(uint8_t *));
+    batch.Plen = calloc(count + 1, sizeof(size_t));
+    batch.Slen = calloc(count + 1, sizeof(size_t));
+    batch.DK   = malloc((size_t) dkLen * count + 1);
+    if (!batch.P || !batch.S || !batch.Plen || !batch.Slen || !batch.DK) {
+        throwScryptError(env, ENOMEM);
+        goto cleanup;
+    }
+
+    /* JNI can't be used from the worker threads, so the inputs are copied first. */
+    for (i = 0; i < count; i++) {
+        batch.P[i] = copyBytes(env, passwds, i, &batch.Plen[i]);
+        if (batch.P[i] == NULL) goto fail;
+        batch.S[i] = copyBytes(env, salts, i, &batch.Slen[i]);
+        if (batch.S[i] == NULL) goto fail;
+    }
+
+    if (threads < 1) threads = 1;
+    if (threads > SCRYPT_MAX_THREADS) threads = SCRYPT_MAX_THREADS;
+    workerCount = (uint32_t) threads < (uint32_t) count ? (uint32_t) threads : (uint32_t) count;
+    if (workerCount < 1) workerCount = 1;
+    batch.laneThreads = threads / workerCount;
+
+    workers = calloc(workerCount, sizeof(pthread_t));
+    started = calloc(workerCount, sizeof(int));
+    if (!workers || !started || pthread_mutex_init(&batch.lock, NULL) != 0) {
+        throwScryptError(env, ENOMEM);
+        goto cleanup;
+    }
+
+    for (i = 1; i < (jsize) workerCount; i++) {
+        started[i] = pthread_create(&workers[i], NULL, batchWorker, &batch) == 0;
+    }
+    batchWorker(&batch);
+    for (i = 1; i < (jsize) workerCount; i++) {
+        if (started[i]) pthread_join(workers[i], NULL);
+    }
+    pthread_mutex_destroy(&batch.lock);
+
+    if (batch.error) {
+        throwScryptError(env, batch.error);
+        goto cleanup;
+    }
+
+    byteArrayClass = (*env)->FindClass(env, "[B");
+    if (byteArrayClass == NULL) goto cleanup;
+    DKs = (*env)->NewObjectArray(env, count, byteArrayClass, NULL);
+    if (DKs == NULL) goto cleanup;
+
+    for (i = 0; i < count; i++) {
+        jbyteArray DK = (*env)->NewByteArray(env, dkLen);
+        if (DK == NULL) {
+            DKs = NULL;
+            goto cleanup;
+        }
+        (*env)->SetByteArrayRegion(env, DK, 0, dkLen, (jbyte *) &batch.DK[(size_t) i * dkLen]);
+        (*env)->SetObjectArrayElement(env, DKs, i, DK);
+        (*env)->DeleteLocalRef(env, DK);
+    }
+    goto cleanup;
+
+  fail:
+
+    if (!(*env)->ExceptionCheck(env)) throwScryptError(env, ENOMEM);
+
+  cleanup:
+
+    for (i = 0; i < count; i++) {
+        if (batch.P && batch.P[i]) {
+            memset(batch.P[i], 0, batch.Plen[i]);
+            free(batch.P[i]);
+        }
+        if (batch.S && batch.S[i]) free(batch.S[i]);
+    }
+    if (batch.DK) {
+        memset(batch.DK, 0, (size_t) dkLen * count);
+        free(batch.DK);
+    }
+    free(batch.P);
+    free(batch.S);
+    free(batch.Plen);
+    free(batch.Slen);
+    free(workers);
+    free(started);
+
+    return DKs;
+}
+
+jstring JNICALL scryptVariantN(JNIEnv *env, jclass cls) {
+    return (*env)->NewStringUTF(env, crypto_scrypt_variant_name(crypto_scrypt_variant()));
+}
+
 static const JNINativeMethod methods[] = {
-    { "scryptN", "([B[BIIII)[B", (void *) scryptN }
+    { "scryptN", "([B[BIIII)[B", (void *) scryptN },
+    { "scryptBatchN", "([[B[[BIIIII)[[B", (void *) scryptBatchN },
+    { "scryptVariantN", "()Ljava/lang/String;", (void *) scryptVariantN }
 };
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -63,7 +255,7 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     }
 
     jclass cls = (*env)->FindClass(env, "com/lambdaworks/crypto/SCrypt");
-    int r = (*env)->RegisterNatives(env, cls, methods, 1);
+    int r = (*env)->RegisterNatives(env, cls, methods, sizeof(methods) / sizeof(methods[0]));
 
     return (r == JNI_OK) ? JNI_VERSION_1_6 : -1;
 }
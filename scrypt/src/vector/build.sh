@@ -0,0 +1,19 @@
+#!/bin/sh
+# Builds scrypt-vector.jar with the Vector API SMix (com.lambdaworks.crypto.vector.VectorSMix)
+# for JDK 16+ hosts. SCrypt uses it when the jar is on the classpath and the JVM runs with
+#   --add-modules jdk.incubator.vector
+# It can't be part of the Android library: ART has no Vector API.
+set -e
+
+cd "$(dirname "$0")"
+OUT=${1:-../../build/libs}
+: ${JAVA_HOME:?JAVA_HOME must point to a JDK 16 or newer}
+
+CLASSES=$(mktemp -d)
+trap 'rm -rf "$CLASSES"' EXIT
+
+"$JAVA_HOME/bin/javac" -nowarn --add-modules jdk.incubator.vector -d "$CLASSES" \
+    $(find ../main/java/com/lambdaworks -name '*.java') $(find java -name '*.java')
+
+mkdir -p "$OUT"
+"$JAVA_HOME/bin/jar" cf "$OUT/scrypt-vector.jar" -C "$CLASSES" com/lambdaworks/crypto/vector
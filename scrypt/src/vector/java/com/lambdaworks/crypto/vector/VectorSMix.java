@@ -0,0 +1,133 @@
+package com.lambdaworks.crypto.vector;
+
+import com.lambdaworks.crypto.SMix;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import static java.lang.System.arraycopy;
+import static jdk.incubator.vector.VectorOperators.ROL;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+/**
+ * {@link SMix} on the JDK Vector API (JDK 16+, module {@code jdk.incubator.vector}). The 16 words
+ * of a salsa20 block are kept in the diagonal order (word i * 5 % 16 at position i), so a round
+ * works on four 128-bit rows and the columns are rearranged with shuffles only, like the SSE2
+ * code of the native library.
+ *
+ * Built separately by {@code src/vector/build.sh}; {@link com.lambdaworks.crypto.SCrypt} picks it
+ * up when the jar is on the classpath and the JVM runs with {@code --add-modules jdk.incubator.vector}.
+ */
+public class VectorSMix implements SMix {
+    private static final VectorSpecies<Integer> S = IntVector.SPECIES_128;
+
+    private static final VectorShuffle<Integer> ROTATE_1 = VectorShuffle.fromValues(S, 3, 0, 1, 2);
+    private static final VectorShuffle<Integer> ROTATE_2 = VectorShuffle.fromValues(S, 2, 3, 0, 1);
+    private static final VectorShuffle<Integer> ROTATE_3 = VectorShuffle.fromValues(S, 1, 2, 3, 0);
+
+    /**
+     * @throws UnsupportedOperationException when the CPU has no 128-bit vectors.
+     */
+    public VectorSMix() {
+        if (IntVector.SPECIES_PREFERRED.vectorBitSize() < S.vectorBitSize()) {
+            throw new UnsupportedOperationException("128-bit vectors are not supported");
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector128";
+    }
+
+    @Override
+    public void smix(int[] B, int Bi, int r, int N, int[] V, int[] XY) {
+        int len = 32 * r;
+        int Xi = 0;
+        int Yi = len;
+        int i, j, k;
+
+        for (k = 0; k < 2 * r; k++) {
+            for (i = 0; i < 16; i++) {
+                XY[Xi + k * 16 + i] = B[Bi + k * 16 + (i * 5 & 15)];
+            }
+        }
+
+        for (i = 0; i < N; i += 2) {
+            arraycopy(XY, Xi, V, i * len, len);
+            blockmix_salsa8(XY, Xi, Yi, r);
+            arraycopy(XY, Yi, V, (i + 1) * len, len);
+            blockmix_salsa8(XY, Yi, Xi, r);
+        }
+
+        for (i = 0; i < N; i += 2) {
+            // word 0 of the last sub-block stays at position 0
+            j = XY[Xi + (2 * r - 1) * 16] & (N - 1);
+            blockxor(V, j * len, XY, Xi, len);
+            blockmix_salsa8(XY, Xi, Yi, r);
+
+            j = XY[Yi + (2 * r - 1) * 16] & (N - 1);
+            blockxor(V, j * len, XY, Yi, len);
+            blockmix_salsa8(XY, Yi, Xi, r);
+        }
+
+        for (k = 0; k < 2 * r; k++) {
+            for (i = 0; i < 16; i++) {
+                B[Bi + k * 16 + (i * 5 & 15)] = XY[Xi + k * 16 + i];
+            }
+        }
+    }
+
+    /**
+     * BlockMix of the block at Bi into the block at Yi (even sub-blocks first, then odd ones).
+     * The working block stays in four vectors between the sub-blocks.
+     */
+    private static void blockmix_salsa8(int[] BY, int Bi, int Yi, int r) {
+        int last = Bi + (2 * r - 1) * 16;
+        IntVector x0 = IntVector.fromArray(S, BY, last);
+        IntVector x1 = IntVector.fromArray(S, BY, last + 4);
+        IntVector x2 = IntVector.fromArray(S, BY, last + 8);
+        IntVector x3 = IntVector.fromArray(S, BY, last + 12);
+        IntVector a0, a1, a2, a3, t;
+        int i, k, o;
+
+        for (i = 0; i < 2 * r; i++) {
+            o = Bi + i * 16;
+            x0 = x0.lanewise(XOR, IntVector.fromArray(S, BY, o));
+            x1 = x1.lanewise(XOR, IntVector.fromArray(S, BY, o + 4));
+            x2 = x2.lanewise(XOR, IntVector.fromArray(S, BY, o + 8));
+            x3 = x3.lanewise(XOR, IntVector.fromArray(S, BY, o + 12));
+
+            a0 = x0; a1 = x1; a2 = x2; a3 = x3;
+            for (k = 8; k > 0; k -= 2) {
+                // columns
+                t = a0.add(a3); a1 = a1.lanewise(XOR, t.lanewise(ROL, 7));
+                t = a1.add(a0); a2 = a2.lanewise(XOR, t.lanewise(ROL, 9));
+                t = a2.add(a1); a3 = a3.lanewise(XOR, t.lanewise(ROL, 13));
+                t = a3.add(a2); a0 = a0.lanewise(XOR, t.lanewise(ROL, 18));
+
+                a1 = a1.rearrange(ROTATE_1); a2 = a2.rearrange(ROTATE_2); a3 = a3.rearrange(ROTATE_3);
+
+                // rows
+                t = a0.add(a1); a3 = a3.lanewise(XOR, t.lanewise(ROL, 7));
+                t = a3.add(a0); a2 = a2.lanewise(XOR, t.lanewise(ROL, 9));
+                t = a2.add(a3); a1 = a1.lanewise(XOR, t.lanewise(ROL, 13));
+                t = a1.add(a2); a0 = a0.lanewise(XOR, t.lanewise(ROL, 18));
+
+                a1 = a1.rearrange(ROTATE_3); a2 = a2.rearrange(ROTATE_2); a3 = a3.rearrange(ROTATE_1);
+            }
+            x0 = x0.add(a0); x1 = x1.add(a1); x2 = x2.add(a2); x3 = x3.add(a3);
+
+            o = Yi + ((i >> 1) + (i & 1) * r) * 16;
+            x0.intoArray(BY, o);
+            x1.intoArray(BY, o + 4);
+            x2.intoArray(BY, o + 8);
+            x3.intoArray(BY, o + 12);
+        }
+    }
+
+    private static void blockxor(int[] src, int si, int[] dst, int di, int len) {
+        for (int i = 0; i < len; i += 4) {
+            IntVector.fromArray(S, dst, di + i).lanewise(XOR, IntVector.fromArray(S, src, si + i)).intoArray(dst, di + i);
+        }
+    }
+}